@@ -31,6 +31,7 @@ import androidx.core.app.NotificationCompat;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
 import org.pixelexperience.ota.misc.FileUtils;
+import org.pixelexperience.ota.misc.PackageVerifier;
 
 import java.io.File;
 import java.io.IOException;
@@ -48,6 +49,7 @@ public class ExportUpdateService extends Service {
     public static final String ACTION_START_EXPORTING = "start_exporting";
     public static final String EXTRA_SOURCE_FILE = "source_file";
     public static final String EXTRA_DEST_URI = "dest_uri";
+    public static final String EXTRA_HASH = "hash";
     private static final String TAG = "ExportUpdateService";
     private static final int NOTIFICATION_ID = 16;
     private static final String EXPORT_NOTIFICATION_CHANNEL =
@@ -75,7 +77,8 @@ public class ExportUpdateService extends Service {
             mIsExporting = true;
             File source = (File) intent.getSerializableExtra(EXTRA_SOURCE_FILE);
             Uri destination = intent.getParcelableExtra(EXTRA_DEST_URI);
-            startExporting(source, destination);
+            String hash = intent.getStringExtra(EXTRA_HASH);
+            startExporting(source, destination, hash);
         } else {
             Log.e(TAG, "No action specified");
         }
@@ -101,7 +104,7 @@ public class ExportUpdateService extends Service {
         }).start();
     }
 
-    private void startExporting(File source, Uri destination) {
+    private void startExporting(File source, Uri destination, String hash) {
         final String fileName = FileUtils.queryName(getContentResolver(), destination);
         notifyExportStatusChanged(EXPORT_STATUS_RUNNING);
         NotificationManager notificationManager =
@@ -168,7 +171,7 @@ public class ExportUpdateService extends Service {
         };
 
         ExportRunnable exportRunnable = new ExportRunnable(getContentResolver(), source,
-                destination, progressCallBack, runnableComplete, runnableFailed);
+                destination, hash, progressCallBack, runnableComplete, runnableFailed);
         mExportThread = new Thread(exportRunnable);
         mExportThread.start();
     }
@@ -177,16 +180,18 @@ public class ExportUpdateService extends Service {
         private final ContentResolver mContentResolver;
         private File mSource;
         private final Uri mDestination;
+        private final String mHash;
         private FileUtils.ProgressCallBack mProgressCallBack;
         private Runnable mRunnableComplete;
         private Runnable mRunnableFailed;
 
-        private ExportRunnable(ContentResolver cr, File source, Uri destination,
+        private ExportRunnable(ContentResolver cr, File source, Uri destination, String hash,
                                FileUtils.ProgressCallBack progressCallBack,
                                Runnable runnableComplete, Runnable runnableFailed) {
             mContentResolver = cr;
             mSource = source;
             mDestination = destination;
+            mHash = hash;
             mProgressCallBack = progressCallBack;
             mRunnableComplete = runnableComplete;
             mRunnableFailed = runnableFailed;
@@ -195,7 +200,16 @@ public class ExportUpdateService extends Service {
         @Override
         public void run() {
             try {
-                FileUtils.copyFile(mContentResolver, mSource, mDestination, mProgressCallBack);
+                if (mHash != null) {
+                    PackageVerifier verifier = new PackageVerifier(mHash);
+                    FileUtils.copyFile(mContentResolver, mSource, mDestination, verifier,
+                            mProgressCallBack);
+                    if (!verifier.verify(mHash)) {
+                        throw new IOException("Hash mismatch");
+                    }
+                } else {
+                    FileUtils.copyFile(mContentResolver, mSource, mDestination, mProgressCallBack);
+                }
                 mIsExporting = false;
                 if (!mExportThread.isInterrupted()) {
                     Log.d(TAG, "Completed");
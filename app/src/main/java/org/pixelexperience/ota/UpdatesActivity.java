@@ -72,6 +72,7 @@ public class UpdatesActivity extends UpdatesListActivity {
     private static final String TAG = "UpdatesActivity";
 
     public static final String ACTION_START_DOWNLOAD_WITH_WARNING = "action_start_download_with_warning";
+    public static final String ACTION_STREAM_INSTALL_WITH_WARNING = "action_stream_install_with_warning";
 
     public static final String ACTION_SHOW_SNACKBAR = "action_show_snackbar";
     public static final String EXTRA_SNACKBAR_TEXT = "extra_snackbar_text";
@@ -160,7 +161,8 @@ public class UpdatesActivity extends UpdatesListActivity {
                 } else if (UpdaterController.ACTION_NETWORK_UNAVAILABLE.equals(intent.getAction())) {
                     showSnackbar(R.string.snack_download_failed, Snackbar.LENGTH_LONG);
                 } else if (UpdaterController.ACTION_DOWNLOAD_PROGRESS.equals(intent.getAction()) ||
-                        UpdaterController.ACTION_INSTALL_PROGRESS.equals(intent.getAction())) {
+                        UpdaterController.ACTION_INSTALL_PROGRESS.equals(intent.getAction()) ||
+                        UpdaterController.ACTION_VERIFY_PROGRESS.equals(intent.getAction())) {
                     mAdapter.notifyUpdateChanged();
                 } else if (UpdaterController.ACTION_UPDATE_REMOVED.equals(intent.getAction())) {
                     mAdapter.removeUpdate();
@@ -174,6 +176,8 @@ public class UpdatesActivity extends UpdatesListActivity {
                     showRestartPendingDialog();
                 } else if (ACTION_START_DOWNLOAD_WITH_WARNING.equals(intent.getAction())) {
                     startDownloadWithWarning();
+                } else if (ACTION_STREAM_INSTALL_WITH_WARNING.equals(intent.getAction())) {
+                    streamInstallWithWarning();
                 } else if (ACTION_SHOW_SNACKBAR.equals(intent.getAction())) {
                     showSnackbar(intent.getStringExtra(EXTRA_SNACKBAR_TEXT), Snackbar.LENGTH_LONG);
                 }
@@ -268,11 +272,13 @@ public class UpdatesActivity extends UpdatesListActivity {
         intentFilter.addAction(UpdaterController.ACTION_UPDATE_STATUS);
         intentFilter.addAction(UpdaterController.ACTION_DOWNLOAD_PROGRESS);
         intentFilter.addAction(UpdaterController.ACTION_INSTALL_PROGRESS);
+        intentFilter.addAction(UpdaterController.ACTION_VERIFY_PROGRESS);
         intentFilter.addAction(UpdaterController.ACTION_UPDATE_REMOVED);
         intentFilter.addAction(UpdaterController.ACTION_NETWORK_UNAVAILABLE);
         intentFilter.addAction(ExportUpdateService.ACTION_EXPORT_STATUS);
         intentFilter.addAction(ABUpdateInstaller.ACTION_RESTART_PENDING);
         intentFilter.addAction(ACTION_START_DOWNLOAD_WITH_WARNING);
+        intentFilter.addAction(ACTION_STREAM_INSTALL_WITH_WARNING);
         intentFilter.addAction(ACTION_SHOW_SNACKBAR);
         LocalBroadcastManager.getInstance(this).registerReceiver(mBroadcastReceiver, intentFilter);
     }
@@ -424,6 +430,7 @@ public class UpdatesActivity extends UpdatesListActivity {
                     .setUrl(url)
                     .setDestination(jsonFileTmp)
                     .setDownloadCallback(callback)
+                    .setUseNonBlockingIo(Utils.useNonBlockingDownloads())
                     .build();
         } catch (IOException exception) {
             Log.e(TAG, "Could not build download client");
@@ -472,6 +479,9 @@ public class UpdatesActivity extends UpdatesListActivity {
             case DOWNLOAD_ERROR:
                 showSnackbar(R.string.snack_download_failed, Snackbar.LENGTH_LONG);
                 break;
+            case NOT_ENOUGH_SPACE:
+                showSnackbar(R.string.snack_download_not_enough_space, Snackbar.LENGTH_LONG);
+                break;
             case VERIFICATION_FAILED:
                 showSnackbar(R.string.snack_download_verification_failed, Snackbar.LENGTH_LONG);
                 break;
@@ -495,6 +505,7 @@ public class UpdatesActivity extends UpdatesListActivity {
         switch (mUpdateStatus) {
             case UNKNOWN:
             case DOWNLOAD_ERROR:
+            case NOT_ENOUGH_SPACE:
             case DELETED:
             case VERIFICATION_FAILED:
                 Log.d(TAG, "handleRefreshButtonState, status is: " + mUpdateStatus + ", enabling button");
@@ -539,6 +550,7 @@ public class UpdatesActivity extends UpdatesListActivity {
         intent.setAction(ExportUpdateService.ACTION_START_EXPORTING);
         intent.putExtra(ExportUpdateService.EXTRA_SOURCE_FILE, mToBeExported.getFile());
         intent.putExtra(ExportUpdateService.EXTRA_DEST_URI, uri);
+        intent.putExtra(ExportUpdateService.EXTRA_HASH, mToBeExported.getHash());
         startService(intent);
         getUpdatesList();
     }
@@ -548,6 +560,18 @@ public class UpdatesActivity extends UpdatesListActivity {
     }
 
     private void startDownloadWithWarning() {
+        runWithNetworkWarning(mUpdaterService.getUpdaterController()::startDownload);
+    }
+
+    /**
+     * A streamed install downloads the payload as it goes, so it gets the same
+     * metered network warning as a download.
+     */
+    private void streamInstallWithWarning() {
+        runWithNetworkWarning(() -> Utils.triggerUpdate(this));
+    }
+
+    private void runWithNetworkWarning(Runnable start) {
         UpdaterController updaterController = mUpdaterService.getUpdaterController();
         if (!Utils.isNetworkAvailable(this)) {
             updaterController.notifyNetworkUnavailable();
@@ -556,7 +580,7 @@ public class UpdatesActivity extends UpdatesListActivity {
         SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(this);
         boolean warn = preferences.getBoolean(Constants.PREF_METERED_NETWORK_WARNING, true);
         if (!(Utils.isNetworkMetered(this) && warn)) {
-            updaterController.startDownload();
+            start.run();
             return;
         }
 
@@ -576,7 +600,7 @@ public class UpdatesActivity extends UpdatesListActivity {
                                         .apply();
                                 supportInvalidateOptionsMenu();
                             }
-                            updaterController.startDownload();
+                            start.run();
                         })
                 .setNegativeButton(android.R.string.cancel, null)
                 .show();
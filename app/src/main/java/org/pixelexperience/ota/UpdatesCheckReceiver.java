@@ -131,8 +131,13 @@ public class UpdatesCheckReceiver extends BroadcastReceiver {
             // Set a repeating alarm on boot to check for new updates once per day
             scheduleRepeatingUpdatesCheck(context);
 
-            // Cleanup download dir
-            Utils.cleanupDownloadsDir(context);
+            // Cleanup download dir, unless a download was interrupted by the reboot.
+            // It goes on from its journal when resumed.
+            int status = Utils.getPersistentStatus(context);
+            if (status != UpdateStatus.Persistent.DOWNLOADING &&
+                    status != UpdateStatus.Persistent.STARTING_DOWNLOAD) {
+                Utils.cleanupDownloadsDir(context);
+            }
         }
 
         if (!Utils.isNetworkAvailable(context)) {
@@ -178,6 +183,7 @@ public class UpdatesCheckReceiver extends BroadcastReceiver {
                     .setUrl(url)
                     .setDestination(jsonNew)
                     .setDownloadCallback(callback)
+                    .setUseNonBlockingIo(Utils.useNonBlockingDownloads())
                     .build();
             downloadClient.start();
         } catch (IOException e) {
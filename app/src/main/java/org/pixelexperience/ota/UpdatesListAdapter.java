@@ -107,9 +107,8 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
         UpdaterController.InstallInfo installInfo = mUpdaterController.getInstallInfo();
         if (mUpdaterController.isDownloading()) {
             canDelete = mUpdate.getStatus() != UpdateStatus.STARTING;
-            long length = mUpdate.getFile() != null &&
-                    mUpdate.getStatus() != UpdateStatus.STARTING ?
-                    mUpdate.getFile().length() : 0;
+            long length = mUpdate.getStatus() != UpdateStatus.STARTING ?
+                    downloadInfo.getDownloaded() : 0;
             String downloaded = Utils.readableFileSize(length);
             String total = Utils.readableFileSize(mUpdate.getFileSize());
             String percentage = NumberFormat.getPercentInstance().format(
@@ -142,12 +141,13 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
             viewHolder.mDetails.setVisibility(View.GONE);
             setButtonAction(viewHolder.mAction, Action.INSTALL, false);
             viewHolder.mProgressText.setText(R.string.list_verifying_update);
-            viewHolder.mProgressBar.setIndeterminate(true);
+            viewHolder.mProgressBar.setIndeterminate(mUpdaterController.getVerifyProgress() == 0);
+            viewHolder.mProgressBar.setProgress(mUpdaterController.getVerifyProgress());
         } else {
             canDelete = mUpdate.getStatus() != UpdateStatus.STARTING;
             viewHolder.mDetails.setVisibility(View.GONE);
             setButtonAction(viewHolder.mAction, Action.RESUME, !isBusy());
-            String downloaded = Utils.readableFileSize(mUpdate.getFile() != null && mUpdate.getStatus() != UpdateStatus.STARTING ? mUpdate.getFile().length() : 0);
+            String downloaded = Utils.readableFileSize(mUpdate.getStatus() != UpdateStatus.STARTING ? downloadInfo.getDownloaded() : 0);
             String total = Utils.readableFileSize(mUpdate.getFileSize());
             String percentage = NumberFormat.getPercentInstance().format(
                     downloadInfo.getProgress() / 100.f);
@@ -175,7 +175,9 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
             viewHolder.mDetails.setVisibility(View.GONE);
         } else {
             setupOptionMenuListeners(false, viewHolder);
-            setButtonAction(viewHolder.mAction, Action.DOWNLOAD, !isBusy());
+            // A streamed install skips the download, go straight to installing
+            setButtonAction(viewHolder.mAction,
+                    Utils.useStreamingInstall() ? Action.INSTALL : Action.DOWNLOAD, !isBusy());
             viewHolder.mDetails.setVisibility(View.VISIBLE);
         }
         String fileSize = Utils.readableFileSize(mUpdate.getFileSize());
@@ -272,6 +274,14 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
         mBroadcastManager.sendBroadcast(new Intent(UpdatesActivity.ACTION_START_DOWNLOAD_WITH_WARNING));
     }
 
+    private void installUpdate() {
+        if (Utils.getPersistentStatus(mContext) == UpdateStatus.Persistent.VERIFIED) {
+            Utils.triggerUpdate(mContext);
+        } else {
+            mBroadcastManager.sendBroadcast(new Intent(UpdatesActivity.ACTION_STREAM_INSTALL_WITH_WARNING));
+        }
+    }
+
     private void setButtonAction(Button button, Action action, boolean enabled) {
         final View.OnClickListener clickListener;
         switch (action) {
@@ -426,7 +436,7 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
                 .setMessage(mContext.getString(resId, mUpdate.getName(),
                         mContext.getString(android.R.string.ok)) + extraMessage)
                 .setPositiveButton(android.R.string.ok,
-                        (dialog, which) -> Utils.triggerUpdate(mContext))
+                        (dialog, which) -> installUpdate())
                 .setNegativeButton(android.R.string.cancel, null);
     }
 
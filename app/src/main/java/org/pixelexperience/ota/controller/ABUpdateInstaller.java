@@ -20,6 +20,8 @@ import android.annotation.SuppressLint;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.UpdateEngine;
 import android.os.UpdateEngineCallback;
 import android.util.Log;
@@ -27,6 +29,7 @@ import android.util.Log;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 import androidx.preference.PreferenceManager;
 
+import org.pixelexperience.ota.download.RemoteZip;
 import org.pixelexperience.ota.misc.Constants;
 import org.pixelexperience.ota.misc.Utils;
 import org.pixelexperience.ota.model.Update;
@@ -37,7 +40,9 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
@@ -51,6 +56,8 @@ public class ABUpdateInstaller {
     private static ABUpdateInstaller sInstance = null;
 
     public static boolean sNeedsReboot = false;
+    private static boolean sSuspended = false;
+    private static boolean sPreparingStream = false;
 
     private final UpdaterController mUpdaterController;
     private final Context mContext;
@@ -144,7 +151,7 @@ public class ABUpdateInstaller {
     }
 
     static synchronized boolean isInstallingUpdate(Context context) {
-        if (needsReboot()) {
+        if (needsReboot() || sPreparingStream) {
             return true;
         }
         SharedPreferences pref = PreferenceManager.getDefaultSharedPreferences(context);
@@ -155,6 +162,10 @@ public class ABUpdateInstaller {
         return sNeedsReboot;
     }
 
+    static synchronized boolean isSuspended() {
+        return sSuspended;
+    }
+
     static synchronized ABUpdateInstaller getInstance(Context context,
                                                       UpdaterController updaterController) {
         if (sInstance == null) {
@@ -203,6 +214,81 @@ public class ABUpdateInstaller {
             return;
         }
 
+        if (!applyPayload("file://" + file.getAbsolutePath(), offset, 0, headerKeyValuePairs)) {
+            mUpdaterController.setStatus(UpdateStatus.INSTALLATION_FAILED);
+            mUpdaterController.notifyUpdateChange(UpdateStatus.INSTALLATION_FAILED);
+        }
+    }
+
+    /**
+     * Install the update straight from its download URL, without a local copy.
+     * The payload offset and its properties are read from the zip through range
+     * requests, then update_engine fetches and applies the payload in one pass,
+     * verifying it against the properties as it does for a local file. If the
+     * package can't be streamed, it is downloaded as usual instead.
+     */
+    void installStreaming() {
+        synchronized (ABUpdateInstaller.class) {
+            if (isInstallingUpdate(mContext)) {
+                Log.e(TAG, "Already installing an update");
+                return;
+            }
+            sPreparingStream = true;
+        }
+
+        Update update = mUpdaterController.getCurrentUpdate();
+        mDownloadId = update.getDownloadId();
+        mUpdaterController.notifyUpdateChange(update.getStatus());
+
+        new Thread(() -> {
+            String url;
+            long offset;
+            long size;
+            String[] headerKeyValuePairs;
+            try {
+                RemoteZip zip = RemoteZip.open(update.getDownloadUrl());
+                RemoteZip.Entry payload = zip.getEntry(Constants.AB_PAYLOAD_BIN_PATH);
+                RemoteZip.Entry properties = zip.getEntry(Constants.AB_PAYLOAD_PROPERTIES_PATH);
+                if (payload == null || properties == null) {
+                    throw new IOException("Not an A/B update package");
+                } else if (payload.getMethod() != ZipEntry.STORED) {
+                    throw new IOException("The payload is compressed");
+                }
+                url = zip.getUrl();
+                offset = zip.getDataOffset(payload);
+                size = payload.getSize();
+                String content = new String(zip.read(properties), StandardCharsets.UTF_8);
+                List<String> lines = new ArrayList<>(Arrays.asList(content.split("\\n")));
+                lines.removeIf(String::isEmpty);
+                lines.add("USER_AGENT=org.pixelexperience.ota");
+                headerKeyValuePairs = lines.toArray(new String[0]);
+            } catch (IOException | IllegalArgumentException e) {
+                Log.e(TAG, "Could not locate the payload of " + update.getDownloadUrl(), e);
+                downloadInstead();
+                return;
+            }
+            Log.d(TAG, "Streaming " + size + " bytes of payload at " + offset + " from " + url);
+            if (!applyPayload(url, offset, size, headerKeyValuePairs)) {
+                downloadInstead();
+            }
+        }).start();
+    }
+
+    private void downloadInstead() {
+        Log.d(TAG, "Can't stream the update, downloading it instead");
+        new Handler(Looper.getMainLooper()).post(() -> {
+            synchronized (ABUpdateInstaller.class) {
+                sPreparingStream = false;
+            }
+            mUpdaterController.startDownload();
+        });
+    }
+
+    /**
+     * @return false if update_engine couldn't be bound, nothing was started then
+     */
+    private boolean applyPayload(String url, long offset, long size,
+                                 String[] headerKeyValuePairs) {
         if (!mBound) {
             try{
                 mBound = mUpdateEngine.bind(mUpdateEngineCallback);
@@ -212,9 +298,7 @@ public class ABUpdateInstaller {
             }
             if (!mBound) {
                 Log.e(TAG, "Could not bind");
-                mUpdaterController.setStatus(UpdateStatus.INSTALLATION_FAILED);
-                mUpdaterController.notifyUpdateChange(UpdateStatus.INSTALLATION_FAILED);
-                return;
+                return false;
             }
         }
 
@@ -224,12 +308,13 @@ public class ABUpdateInstaller {
         PreferenceManager.getDefaultSharedPreferences(mContext).edit()
                 .putString(Constants.PREF_INSTALLING_AB_ID, mDownloadId)
                 .apply();
+        synchronized (ABUpdateInstaller.class) {
+            sPreparingStream = false;
+        }
 
-        String[] finalHeaderKeyValuePairs = headerKeyValuePairs;
         new Thread(() -> {
             try {
-                String zipFileUri = "file://" + file.getAbsolutePath();
-                mUpdateEngine.applyPayload(zipFileUri, offset, 0, finalHeaderKeyValuePairs);
+                mUpdateEngine.applyPayload(url, offset, size, headerKeyValuePairs);
             } catch (Exception e) {
                 Log.e(TAG, "Failed to apply payload", e);
                 installationDone(false);
@@ -237,6 +322,7 @@ public class ABUpdateInstaller {
                 mUpdaterController.notifyUpdateChange(UpdateStatus.INSTALLATION_FAILED);
             }
         }).start();
+        return true;
     }
 
     void reconnect() {
@@ -254,7 +340,33 @@ public class ABUpdateInstaller {
         }
     }
 
+    /**
+     * Pause or continue applying the payload, keeping what was applied so far.
+     */
+    void setSuspended(boolean suspended) {
+        if (!isInstallingUpdate(mContext) || needsReboot()) {
+            return;
+        }
+        try {
+            if (suspended) {
+                mUpdateEngine.suspend();
+            } else {
+                mUpdateEngine.resume();
+            }
+            synchronized (ABUpdateInstaller.class) {
+                sSuspended = suspended;
+            }
+            Log.d(TAG, suspended ? "Update suspended" : "Update resumed");
+        } catch (Exception e) {
+            // Nothing to suspend or resume, like while finalizing
+            Log.e(TAG, "Could not " + (suspended ? "suspend" : "resume") + " the update", e);
+        }
+    }
+
     private void installationDone(boolean needsReboot) {
+        synchronized (ABUpdateInstaller.class) {
+            sSuspended = false;
+        }
         PreferenceManager.getDefaultSharedPreferences(mContext).edit()
                 .remove(Constants.PREF_INSTALLING_AB_ID)
                 .apply();
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2023 The PixelExperience Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixelexperience.ota.controller;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.PowerManager;
+import android.util.Log;
+
+/**
+ * Watches the thermal status and the battery, and tells when downloads should
+ * slow down or downloads and installs should stop for a while. Constraints apply
+ * as soon as they're met but are only lifted once the device got clearly better,
+ * so that they don't flap around a threshold.
+ */
+class DeviceHealthGovernor {
+
+    private static final String TAG = "DeviceHealthGovernor";
+
+    // Thermal status from which downloads are throttled, and from which everything
+    // is suspended
+    private static final int THROTTLE_THERMAL_STATUS = PowerManager.THERMAL_STATUS_MODERATE;
+    private static final int SUSPEND_THERMAL_STATUS = PowerManager.THERMAL_STATUS_SEVERE;
+    // A cooler thermal status must last this long before constraints are lifted
+    private static final long THERMAL_COOLDOWN_MS = 60 * 1000;
+    // Battery levels, in percent, from which the same happens when not charging.
+    // Constraints are lifted BATTERY_HYSTERESIS points above them, or once plugged in.
+    private static final int THROTTLE_BATTERY_LEVEL = 30;
+    private static final int SUSPEND_BATTERY_LEVEL = 15;
+    private static final int BATTERY_HYSTERESIS = 5;
+
+    /**
+     * In increasing order of severity.
+     */
+    enum Health {
+        GOOD,
+        LOW_BATTERY,
+        WARM,
+        CRITICAL_BATTERY,
+        HOT;
+
+        boolean shouldThrottle() {
+            return this != GOOD;
+        }
+
+        boolean shouldSuspend() {
+            return this == CRITICAL_BATTERY || this == HOT;
+        }
+
+        boolean isThermal() {
+            return this == WARM || this == HOT;
+        }
+    }
+
+    interface Listener {
+        void onHealthChanged(Health health);
+    }
+
+    private final Context mContext;
+    private final PowerManager mPowerManager;
+    private final Listener mListener;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final PowerManager.OnThermalStatusChangedListener mThermalListener =
+            this::onThermalStatusChanged;
+    private final Runnable mCoolDown = this::coolDown;
+    private final BroadcastReceiver mBatteryReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            onBatteryChanged(intent);
+        }
+    };
+    private boolean mStarted = false;
+    private int mThermalStatus = PowerManager.THERMAL_STATUS_NONE;
+    private Health mThermalHealth = Health.GOOD;
+    private Health mBatteryHealth = Health.GOOD;
+    private Health mHealth = Health.GOOD;
+
+    DeviceHealthGovernor(Context context, Listener listener) {
+        mContext = context.getApplicationContext();
+        mPowerManager = mContext.getSystemService(PowerManager.class);
+        mListener = listener;
+    }
+
+    /**
+     * Start watching, the listener is called on the main thread.
+     */
+    void start() {
+        if (mStarted) {
+            return;
+        }
+        mStarted = true;
+        // Both report the current state right away
+        mPowerManager.addThermalStatusListener(mContext.getMainExecutor(), mThermalListener);
+        Intent battery = mContext.registerReceiver(mBatteryReceiver,
+                new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (battery != null) {
+            onBatteryChanged(battery);
+        }
+    }
+
+    void stop() {
+        if (!mStarted) {
+            return;
+        }
+        mStarted = false;
+        mPowerManager.removeThermalStatusListener(mThermalListener);
+        mContext.unregisterReceiver(mBatteryReceiver);
+        mHandler.removeCallbacks(mCoolDown);
+    }
+
+    Health getHealth() {
+        return mHealth;
+    }
+
+    private static Health getThermalHealth(int status) {
+        if (status >= SUSPEND_THERMAL_STATUS) {
+            return Health.HOT;
+        } else if (status >= THROTTLE_THERMAL_STATUS) {
+            return Health.WARM;
+        }
+        return Health.GOOD;
+    }
+
+    private void onThermalStatusChanged(int status) {
+        mThermalStatus = status;
+        Health health = getThermalHealth(status);
+        if (health.compareTo(mThermalHealth) >= 0) {
+            mHandler.removeCallbacks(mCoolDown);
+            mThermalHealth = health;
+            update();
+        } else if (!mHandler.hasCallbacks(mCoolDown)) {
+            mHandler.postDelayed(mCoolDown, THERMAL_COOLDOWN_MS);
+        }
+    }
+
+    private void coolDown() {
+        mThermalHealth = getThermalHealth(mThermalStatus);
+        update();
+    }
+
+    private void onBatteryChanged(Intent intent) {
+        int level = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale = intent.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+        boolean charging = intent.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+        if (level < 0 || scale <= 0 || charging) {
+            mBatteryHealth = Health.GOOD;
+        } else {
+            int percent = level * 100 / scale;
+            int suspendLevel = SUSPEND_BATTERY_LEVEL;
+            int throttleLevel = THROTTLE_BATTERY_LEVEL;
+            if (mBatteryHealth == Health.CRITICAL_BATTERY) {
+                suspendLevel += BATTERY_HYSTERESIS;
+            }
+            if (mBatteryHealth != Health.GOOD) {
+                throttleLevel += BATTERY_HYSTERESIS;
+            }
+            if (percent <= suspendLevel) {
+                mBatteryHealth = Health.CRITICAL_BATTERY;
+            } else if (percent <= throttleLevel) {
+                mBatteryHealth = Health.LOW_BATTERY;
+            } else {
+                mBatteryHealth = Health.GOOD;
+            }
+        }
+        update();
+    }
+
+    private void update() {
+        Health health = mThermalHealth.compareTo(mBatteryHealth) >= 0 ?
+                mThermalHealth : mBatteryHealth;
+        if (health == mHealth) {
+            return;
+        }
+        Log.d(TAG, "Device health changed from " + mHealth + " to " + health);
+        mHealth = health;
+        mListener.onHealthChanged(health);
+    }
+}
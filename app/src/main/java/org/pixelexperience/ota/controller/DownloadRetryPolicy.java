@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2023 The PixelExperience Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixelexperience.ota.controller;
+
+import android.system.ErrnoException;
+import android.system.OsConstants;
+
+import org.pixelexperience.ota.download.HttpStatusException;
+import org.pixelexperience.ota.download.ResumeException;
+
+import java.io.IOException;
+
+/**
+ * Decides what to do with a download that failed. Most failures are temporary and
+ * what was downloaded is kept so that the download can be resumed after a while,
+ * only failures that can't go away make it be thrown away.
+ */
+class DownloadRetryPolicy {
+
+    enum Failure {
+        // Connection lost, timed out, unreachable host
+        NETWORK,
+        // 5xx, 408 and 429 replies
+        SERVER,
+        // The download can't be continued and has to start over
+        RANGE_NOT_SATISFIABLE,
+        DISK_FULL,
+        // Anything else the server refused, retrying won't help
+        PERMANENT,
+    }
+
+    // Retries wait RETRY_BASE_MS, doubling up to RETRY_MAX_MS. The count starts over
+    // whenever the download got further than when it failed the previous time.
+    private static final int MAX_RETRIES = 5;
+    private static final long RETRY_BASE_MS = 30 * 1000;
+    private static final long RETRY_MAX_MS = 10 * 60 * 1000;
+    // Starting over doesn't depend on the network, it's only tried this often
+    private static final int MAX_RESTARTS = 1;
+
+    private int mRetries = 0;
+    private int mRestarts = 0;
+    private long mFailedAt = -1;
+
+    static Failure classify(IOException e) {
+        if (e == null) {
+            return Failure.NETWORK;
+        }
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof ErrnoException && ((ErrnoException) t).errno == OsConstants.ENOSPC) {
+                return Failure.DISK_FULL;
+            }
+        }
+        if (e instanceof ResumeException) {
+            return Failure.RANGE_NOT_SATISFIABLE;
+        } else if (e instanceof HttpStatusException) {
+            int statusCode = ((HttpStatusException) e).getStatusCode();
+            // A full reply to a range request means ranges aren't honoured anymore
+            if (statusCode == 416 || statusCode / 100 == 2) {
+                return Failure.RANGE_NOT_SATISFIABLE;
+            } else if (statusCode >= 500 || statusCode == 408 || statusCode == 429) {
+                return Failure.SERVER;
+            }
+            return Failure.PERMANENT;
+        }
+        return Failure.NETWORK;
+    }
+
+    /**
+     * @param downloaded how much of the file was downloaded when it failed
+     * @return how long to wait before resuming, or -1 to give up
+     */
+    long getRetryDelay(long downloaded) {
+        if (downloaded > mFailedAt) {
+            mRetries = 0;
+        }
+        mFailedAt = Math.max(mFailedAt, downloaded);
+        if (mRetries >= MAX_RETRIES) {
+            return -1;
+        }
+        return Math.min(RETRY_MAX_MS, RETRY_BASE_MS << mRetries++);
+    }
+
+    /**
+     * @return whether the download may start over from scratch
+     */
+    boolean canRestart() {
+        if (mRestarts >= MAX_RESTARTS) {
+            return false;
+        }
+        mRestarts++;
+        mRetries = 0;
+        mFailedAt = -1;
+        return true;
+    }
+}
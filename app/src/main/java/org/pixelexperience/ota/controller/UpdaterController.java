@@ -19,6 +19,8 @@ package org.pixelexperience.ota.controller;
 import android.annotation.SuppressLint;
 import android.content.Context;
 import android.content.Intent;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.PowerManager;
 import android.os.SystemClock;
 import android.util.Log;
@@ -26,7 +28,10 @@ import android.util.Log;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
 import org.pixelexperience.ota.download.DownloadClient;
+import org.pixelexperience.ota.download.DownloadJournal;
+import org.pixelexperience.ota.misc.PackageVerifier;
 import org.pixelexperience.ota.misc.Utils;
+import org.pixelexperience.ota.misc.VerificationCache;
 import org.pixelexperience.ota.model.Update;
 import org.pixelexperience.ota.model.UpdateInfo;
 import org.pixelexperience.ota.model.UpdateStatus;
@@ -39,11 +44,13 @@ public class UpdaterController {
 
     public static final String ACTION_DOWNLOAD_PROGRESS = "action_download_progress";
     public static final String ACTION_INSTALL_PROGRESS = "action_install_progress";
+    public static final String ACTION_VERIFY_PROGRESS = "action_verify_progress";
     public static final String ACTION_UPDATE_REMOVED = "action_update_removed";
     public static final String ACTION_UPDATE_STATUS = "action_update_status_change";
     public static final String ACTION_NETWORK_UNAVAILABLE = "action_network_unavailable";
     public static final String EXTRA_STATUS = "extra_status";
     private static final int MAX_REPORT_INTERVAL_MS = 1000;
+    private static final int DOWNLOAD_SEGMENTS = 4;
     @SuppressLint("StaticFieldLeak")
     private static UpdaterController sUpdaterController;
     private final String TAG = "UpdaterController";
@@ -53,10 +60,21 @@ public class UpdaterController {
     private final InstallInfo mInstallInfo = new InstallInfo();
 
     private final PowerManager.WakeLock mWakeLock;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mClosePausedClient = this::closePausedClient;
+    private final Runnable mRetryDownload = this::retryDownload;
+    private final DeviceHealthGovernor mHealthGovernor;
 
     private final File mDownloadRoot;
 
+    // Whether the UI is bound to the service
+    private boolean mForeground = false;
+    // Whether the download was paused until the device gets better
+    private boolean mPausedForDeviceHealth = false;
+    // Whether the device health called for suspending, the last time it changed
+    private boolean mDeviceHealthSuspends = false;
     private boolean mVerifyingUpdate = false;
+    private int mVerifyProgress = 0;
     private final DownloadEntry mDownloadEntry = new DownloadEntry();
 
     private UpdaterController(Context context) {
@@ -66,6 +84,7 @@ public class UpdaterController {
         mWakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "Updates:UpdaterController");
         mWakeLock.setReferenceCounted(false);
         mContext = context.getApplicationContext();
+        mHealthGovernor = new DeviceHealthGovernor(mContext, this::onDeviceHealthChanged);
     }
 
     static synchronized UpdaterController getInstance(Context context) {
@@ -120,12 +139,118 @@ public class UpdaterController {
         mBroadcastManager.sendBroadcast(intent);
     }
 
+    private void notifyVerifyProgress() {
+        Intent intent = new Intent();
+        intent.setAction(ACTION_VERIFY_PROGRESS);
+        mBroadcastManager.sendBroadcast(intent);
+    }
+
     private void tryReleaseWakelock() {
         if (!hasActiveDownloads()) {
             mWakeLock.release();
         }
     }
 
+    /**
+     * Downloads are rate limited differently while the UI is bound to the service.
+     */
+    void setForeground(boolean foreground) {
+        mForeground = foreground;
+        if (mDownloadEntry.mDownloadClient != null) {
+            mDownloadEntry.mDownloadClient.setForeground(foreground);
+        }
+        if (mDownloadEntry.mPausedClient != null) {
+            mDownloadEntry.mPausedClient.setForeground(foreground);
+        }
+    }
+
+    /**
+     * Apply the configured rate limits, lowered while the device is warm or low on
+     * battery.
+     */
+    private void applyRateLimits(DownloadClient downloadClient) {
+        long cap = mHealthGovernor.getHealth().shouldThrottle() ?
+                Utils.getThrottledRateLimit() : 0;
+        downloadClient.setRateLimits(getLowerRateLimit(Utils.getForegroundRateLimit(), cap),
+                getLowerRateLimit(Utils.getBackgroundRateLimit(), cap));
+        downloadClient.setForeground(mForeground);
+    }
+
+    private static long getLowerRateLimit(long limit, long other) {
+        if (limit == 0 || other == 0) {
+            return Math.max(limit, other);
+        }
+        return Math.min(limit, other);
+    }
+
+    /**
+     * Start or stop reacting to the device getting hot or low on battery.
+     */
+    void setDeviceHealthMonitoring(boolean enabled) {
+        if (!enabled) {
+            mHealthGovernor.stop();
+            return;
+        }
+        mHealthGovernor.start();
+        mDeviceHealthSuspends = mHealthGovernor.getHealth().shouldSuspend();
+        // An install suspended before the process died isn't resumed otherwise
+        if (isInstallingABUpdate()) {
+            ABUpdateInstaller.getInstance(mContext, this).setSuspended(mDeviceHealthSuspends);
+        }
+    }
+
+    DeviceHealthGovernor.Health getDeviceHealth() {
+        return mHealthGovernor.getHealth();
+    }
+
+    boolean isWaitingForDeviceHealth() {
+        return mPausedForDeviceHealth;
+    }
+
+    /**
+     * @return whether a failed download is going to be resumed on its own
+     */
+    boolean isRetryPending() {
+        return mHandler.hasCallbacks(mRetryDownload);
+    }
+
+    /**
+     * Throttle, pause or continue what's going on. Downloads paused here are resumed
+     * once the device got better, unless the user resumed them meanwhile.
+     */
+    private void onDeviceHealthChanged(DeviceHealthGovernor.Health health) {
+        if (mDownloadEntry.mDownloadClient != null) {
+            applyRateLimits(mDownloadEntry.mDownloadClient);
+        }
+        if (mDownloadEntry.mPausedClient != null) {
+            applyRateLimits(mDownloadEntry.mPausedClient);
+        }
+        boolean notified = false;
+        boolean suspends = health.shouldSuspend();
+        if (suspends != mDeviceHealthSuspends) {
+            mDeviceHealthSuspends = suspends;
+            if (suspends && isDownloading()) {
+                Log.d(TAG, "Pausing the download, device health is " + health);
+                mPausedForDeviceHealth = pauseDownload();
+                notified = mPausedForDeviceHealth;
+            } else if (suspends && mHandler.hasCallbacks(mRetryDownload)) {
+                mHandler.removeCallbacks(mRetryDownload);
+                mPausedForDeviceHealth = true;
+            } else if (!suspends && mPausedForDeviceHealth) {
+                Log.d(TAG, "Resuming the download, device health is " + health);
+                mPausedForDeviceHealth = false;
+                retryDownload();
+                notified = true;
+            }
+            if (isInstallingABUpdate()) {
+                ABUpdateInstaller.getInstance(mContext, this).setSuspended(suspends);
+            }
+        }
+        if (!notified && mDownloadEntry.isValid()) {
+            notifyUpdateChange(mDownloadEntry.mUpdate.getStatus());
+        }
+    }
+
     private void addDownloadClient(DownloadEntry entry, DownloadClient downloadClient) {
         if (entry.mDownloadClient != null) {
             return;
@@ -156,6 +281,10 @@ public class UpdaterController {
                         Log.e(TAG, "Could not get content-length");
                     }
                 }
+                if (mDownloadEntry.mPausedClient != null) {
+                    // Reconnected while paused, the user still has to resume
+                    return;
+                }
                 mDownloadEntry.mUpdate.setStatus(UpdateStatus.DOWNLOADING);
                 Utils.setPersistentStatus(mContext, UpdateStatus.Persistent.DOWNLOADING);
                 notifyUpdateChange(UpdateStatus.DOWNLOADING);
@@ -164,6 +293,8 @@ public class UpdaterController {
             @Override
             public void onSuccess(File destination) {
                 Log.d(TAG, "Download complete");
+                // What was in flight when pausing can finish the download
+                dropPausedClient();
                 mDownloadEntry.mUpdate.setStatus(UpdateStatus.VERIFYING);
                 removeDownloadClient(mDownloadEntry);
                 verifyUpdateAsync();
@@ -173,21 +304,84 @@ public class UpdaterController {
 
             @Override
             public void onFailure(boolean cancelled) {
+                onFailure(cancelled, null);
+            }
+
+            @Override
+            public void onFailure(boolean cancelled, IOException error) {
                 if (cancelled) {
                     Log.d(TAG, "Download cancelled");
                     // Already notified
+                } else if (dropPausedClient()) {
+                    // Stays paused, resuming starts over from the journal
+                    Log.d(TAG, "Paused download failed");
                 } else {
                     Log.e(TAG, "Download failed");
                     removeDownloadClient(mDownloadEntry);
-                    mDownloadEntry.mUpdate.setStatus(UpdateStatus.DOWNLOAD_ERROR);
-                    notifyUpdateChange(UpdateStatus.DOWNLOAD_ERROR);
-                    removeUpdate(true);
+                    handleDownloadFailure(error);
                 }
                 tryReleaseWakelock();
             }
         };
     }
 
+    /**
+     * Keep what was downloaded unless the failure can't go away, resuming later
+     * on its own if it's likely to work then.
+     */
+    private void handleDownloadFailure(IOException error) {
+        DownloadRetryPolicy retryPolicy = mDownloadEntry.mRetryPolicy;
+        DownloadRetryPolicy.Failure failure = DownloadRetryPolicy.classify(error);
+        Log.d(TAG, "Download failure: " + failure);
+        switch (failure) {
+            case NETWORK:
+            case SERVER: {
+                long delay = retryPolicy.getRetryDelay(mDownloadInfo.getDownloaded());
+                if (delay >= 0) {
+                    Log.d(TAG, "Resuming the download in " + delay / 1000 + "s");
+                    mDownloadEntry.mUpdate.setStatus(UpdateStatus.PAUSED);
+                    mDownloadInfo.setEta(0);
+                    notifyUpdateChange(UpdateStatus.PAUSED);
+                    mHandler.postDelayed(mRetryDownload, delay);
+                } else {
+                    // Out of retries, the user can still resume
+                    mDownloadEntry.mUpdate.setStatus(UpdateStatus.DOWNLOAD_ERROR);
+                    notifyUpdateChange(UpdateStatus.DOWNLOAD_ERROR);
+                }
+                return;
+            }
+            case DISK_FULL:
+                // The download can go on once there's space
+                mDownloadEntry.mUpdate.setStatus(UpdateStatus.NOT_ENOUGH_SPACE);
+                notifyUpdateChange(UpdateStatus.NOT_ENOUGH_SPACE);
+                return;
+            case RANGE_NOT_SATISFIABLE:
+                if (retryPolicy.canRestart()) {
+                    Log.d(TAG, "Starting the download over");
+                    mHandler.post(this::startDownload);
+                    return;
+                }
+                break;
+        }
+        mDownloadEntry.mUpdate.setStatus(UpdateStatus.DOWNLOAD_ERROR);
+        notifyUpdateChange(UpdateStatus.DOWNLOAD_ERROR);
+        removeUpdate(true);
+    }
+
+    private void retryDownload() {
+        if (!mDownloadEntry.isValid()) {
+            return;
+        }
+        Log.d(TAG, "Retrying download");
+        File file = mDownloadEntry.mUpdate.getFile();
+        if (file != null && file.exists()) {
+            resumeDownload();
+        } else {
+            // Failed before anything was written
+            startDownload();
+        }
+    }
+
     private DownloadClient.ProgressListener getProgressListener() {
         return new DownloadClient.ProgressListener() {
             private long mLastUpdate = 0;
@@ -212,6 +406,7 @@ public class UpdaterController {
                     mProgress = progress;
                     mLastUpdate = now;
                     mDownloadInfo.setProgress(progress);
+                    mDownloadInfo.setDownloaded(bytesRead);
                     mDownloadInfo.setEta(eta);
                     notifyDownloadProgress();
                 }
@@ -230,6 +425,7 @@ public class UpdaterController {
     @SuppressLint("SetWorldReadable")
     private void verifyUpdateAsync() {
         mVerifyingUpdate = true;
+        mVerifyProgress = 0;
         new Thread(() -> {
             File file = mDownloadEntry.mUpdate.getFile();
             UpdateStatus status;
@@ -249,15 +445,40 @@ public class UpdaterController {
     }
 
     private boolean verifyPackage(File file, String hash) {
+        // The download hashed the package while writing it, only read what it didn't see
+        PackageVerifier verifier = mDownloadEntry.mVerifier;
+        mDownloadEntry.mVerifier = null;
+        if (VerificationCache.isVerified(file, hash)) {
+            Log.d(TAG, "Package already verified");
+            return true;
+        }
         try {
-            if (Utils.calculateMD5(file).equals(hash)) {
+            if (verifier == null) {
+                // Continue an earlier verification that didn't complete, if any
+                verifier = VerificationCache.loadCheckpoint(file, hash);
+            }
+            if (verifier == null || verifier.getLength() > file.length()) {
+                verifier = new PackageVerifier(hash, true);
+            }
+            if (verifier.isCheckpointable()) {
+                verifier.setCheckpointListener(
+                        v -> VerificationCache.saveCheckpoint(file, hash, v));
+            }
+            verifier.update(file, progress -> {
+                mVerifyProgress = progress;
+                notifyVerifyProgress();
+            });
+            if (verifier.verify(hash)) {
                 Log.d(TAG, "Verification successful");
+                VerificationCache.setVerified(file, hash);
+                VerificationCache.clearCheckpoint(file);
                 return true;
             } else {
-                throw new Exception("MD5 mismatch");
+                throw new Exception("Hash mismatch");
             }
         } catch (Exception e) {
             Log.e(TAG, "Verification failed", e);
+            VerificationCache.clear(file);
             if (file.exists()) {
                 file.delete();
             } else {
@@ -282,6 +503,9 @@ public class UpdaterController {
                 update.setFile(destination);
                 if(Utils.isABDevice() && isInstallingABUpdate()){
                     update.setStatus(UpdateStatus.INSTALLING);
+                }else if (VerificationCache.isVerified(destination, update.getHash())) {
+                    Log.d(TAG, "Package already verified");
+                    update.setStatus(UpdateStatus.VERIFIED);
                 }else{
                     verifyUpdateAsync();
                     Utils.setPersistentStatus(mContext, UpdateStatus.Persistent.DOWNLOADING);
@@ -296,6 +520,31 @@ public class UpdaterController {
             File destination = new File(mDownloadRoot, update.getName());
             update.setFile(destination);
             update.setStatus(UpdateStatus.DOWNLOADING);
+        } else if ((Utils.getPersistentStatus(mContext) == UpdateStatus.Persistent.DOWNLOADING ||
+                Utils.getPersistentStatus(mContext) == UpdateStatus.Persistent.STARTING_DOWNLOAD) &&
+                !isDownloading() &&
+                DownloadJournal.exists(new File(mDownloadRoot, update.getName()))) {
+            // The download was stopped, possibly by a reboot, the journal knows where it was
+            File destination = new File(mDownloadRoot, update.getName());
+            update.setFile(destination);
+            DownloadJournal journal = DownloadJournal.load(destination);
+            if (journal != null && journal.getSize() > 0) {
+                mDownloadInfo.setProgress(
+                        (int) (journal.getCommittedLength() * 100 / journal.getSize()));
+                mDownloadInfo.setDownloaded(journal.getCommittedLength());
+            }
+            Utils.setPersistentStatus(mContext, UpdateStatus.Persistent.DOWNLOADING);
+            update.setStatus(UpdateStatus.PAUSED);
+        } else if (Utils.getPersistentStatus(mContext) == UpdateStatus.Persistent.DOWNLOADING &&
+                update.getFileSize() > 0 &&
+                new File(mDownloadRoot, update.getName()).length() == update.getFileSize()) {
+            update.setFile(new File(mDownloadRoot, update.getName()));
+            update.setStatus(UpdateStatus.VERIFYING);
+            if (!mVerifyingUpdate) {
+                // The process died while verifying the package, pick up from the last checkpoint
+                Log.d(TAG, "Resuming verification");
+                verifyUpdateAsync();
+            }
         } else if (Utils.getPersistentStatus(mContext) == UpdateStatus.Persistent.STARTING_DOWNLOAD && isDownloading()) {
             File destination = new File(mDownloadRoot, update.getName());
             update.setFile(destination);
@@ -309,6 +558,7 @@ public class UpdaterController {
 
     private void resetDownloadInfo() {
         mDownloadInfo.setProgress(0);
+        mDownloadInfo.setDownloaded(0);
         mDownloadInfo.setEta(0);
     }
 
@@ -318,19 +568,24 @@ public class UpdaterController {
             return;
         }
         Log.d(TAG, "Starting download");
+        mPausedForDeviceHealth = false;
+        closePausedClient();
+        mHandler.removeCallbacks(mRetryDownload);
         resetDownloadInfo();
         Utils.cleanupDownloadsDir(mContext);
         File destination = new File(mDownloadRoot, mDownloadEntry.mUpdate.getName());
         mDownloadEntry.mUpdate.setFile(destination);
+        if (!Utils.ensureSpace(mContext, destination, mDownloadEntry.mUpdate.getFileSize())) {
+            Log.e(TAG, "Not enough space to download the update");
+            mDownloadEntry.mUpdate.setStatus(UpdateStatus.NOT_ENOUGH_SPACE);
+            notifyUpdateChange(UpdateStatus.NOT_ENOUGH_SPACE);
+            removeUpdate(true);
+            return;
+        }
+        mDownloadEntry.mVerifier = new PackageVerifier(mDownloadEntry.mUpdate.getHash());
         DownloadClient downloadClient;
         try {
-            downloadClient = new DownloadClient.Builder()
-                    .setUrl(mDownloadEntry.mUpdate.getDownloadUrl())
-                    .setDestination(mDownloadEntry.mUpdate.getFile())
-                    .setDownloadCallback(getDownloadCallback())
-                    .setProgressListener(getProgressListener())
-                    .setUseDuplicateLinks(true)
-                    .build();
+            downloadClient = newDownloadClient();
         } catch (IOException exception) {
             Log.e(TAG, "Could not build download client");
             mDownloadEntry.mUpdate.setStatus(UpdateStatus.DOWNLOAD_ERROR);
@@ -346,6 +601,33 @@ public class UpdaterController {
         mWakeLock.acquire();
     }
 
+    /**
+     * @return a client downloading the current update with the configured options
+     */
+    private DownloadClient newDownloadClient() throws IOException {
+        DownloadClient downloadClient = new DownloadClient.Builder()
+                .setUrl(mDownloadEntry.mUpdate.getDownloadUrl())
+                .setDestination(mDownloadEntry.mUpdate.getFile())
+                .setDownloadCallback(getDownloadCallback())
+                .setProgressListener(getProgressListener())
+                .setContentListener(mDownloadEntry.mVerifier)
+                .setUseDuplicateLinks(true)
+                .setSegments(DOWNLOAD_SEGMENTS)
+                .setUseMirrorStriping(true)
+                .setUseJournal(true)
+                .setPreallocate(true)
+                .setUseNonBlockingIo(Utils.useNonBlockingDownloads())
+                .setMirrorScorecard(Utils.getMirrorScorecard(mContext))
+                .setNetworkHandover(mContext, Utils.isMeteredNetworkAllowed(mContext))
+                .setUseNetworkBonding(Utils.useNetworkBonding())
+                .setMeteredNetworkCap(Utils.getMeteredBondingCap())
+                .setDataBudget(Utils.getDataBudget(mContext), Utils.getMeteredDataBudget(),
+                        Utils.getBillingDay())
+                .build();
+        applyRateLimits(downloadClient);
+        return downloadClient;
+    }
+
     public void setStatus(UpdateStatus status) {
         mDownloadEntry.mUpdate.setStatus(status);
     }
@@ -356,6 +638,20 @@ public class UpdaterController {
             return;
         }
         Log.d(TAG, "Resuming download");
+        mPausedForDeviceHealth = false;
+        mHandler.removeCallbacks(mRetryDownload);
+        if (mDownloadEntry.mPausedClient != null) {
+            // Still connected, bytes flow again right away
+            mHandler.removeCallbacks(mClosePausedClient);
+            DownloadClient downloadClient = mDownloadEntry.mPausedClient;
+            mDownloadEntry.mPausedClient = null;
+            addDownloadClient(mDownloadEntry, downloadClient);
+            mDownloadEntry.mUpdate.setStatus(UpdateStatus.DOWNLOADING);
+            notifyUpdateChange(UpdateStatus.DOWNLOADING);
+            downloadClient.resume();
+            mWakeLock.acquire();
+            return;
+        }
         File file = mDownloadEntry.mUpdate.getFile();
         if (file == null || !file.exists()) {
             Log.e(TAG, "The destination file doesn't exist, can't resume");
@@ -364,21 +660,22 @@ public class UpdaterController {
             removeUpdate(true);
             return;
         }
-        if (file.exists() && mDownloadEntry.mUpdate.getFileSize() > 0 && file.length() >= mDownloadEntry.mUpdate.getFileSize()) {
+        if (file.exists() && mDownloadEntry.mUpdate.getFileSize() > 0 && file.length() >= mDownloadEntry.mUpdate.getFileSize() &&
+                !DownloadJournal.exists(file)) {
             Log.d(TAG, "File already downloaded, starting verification");
             mDownloadEntry.mUpdate.setStatus(UpdateStatus.VERIFYING);
             verifyUpdateAsync();
             notifyUpdateChange(UpdateStatus.VERIFYING);
+        } else if (!Utils.ensureSpace(mContext, file, mDownloadEntry.mUpdate.getFileSize())) {
+            // Keep what was downloaded, the download can go on once there's space
+            Log.e(TAG, "Not enough space to resume the download");
+            mDownloadEntry.mUpdate.setStatus(UpdateStatus.NOT_ENOUGH_SPACE);
+            notifyUpdateChange(UpdateStatus.NOT_ENOUGH_SPACE);
         } else {
+            mDownloadEntry.mVerifier = new PackageVerifier(mDownloadEntry.mUpdate.getHash());
             DownloadClient downloadClient;
             try {
-                downloadClient = new DownloadClient.Builder()
-                        .setUrl(mDownloadEntry.mUpdate.getDownloadUrl())
-                        .setDestination(mDownloadEntry.mUpdate.getFile())
-                        .setDownloadCallback(getDownloadCallback())
-                        .setProgressListener(getProgressListener())
-                        .setUseDuplicateLinks(true)
-                        .build();
+                downloadClient = newDownloadClient();
             } catch (IOException exception) {
                 Log.e(TAG, "Could not build download client");
                 mDownloadEntry.mUpdate.setStatus(UpdateStatus.DOWNLOAD_ERROR);
@@ -401,15 +698,57 @@ public class UpdaterController {
             return false;
         }
         Log.d(TAG, "Pausing download");
-        mDownloadEntry.mDownloadClient.cancel();
+        DownloadClient downloadClient = mDownloadEntry.mDownloadClient;
         removeDownloadClient(mDownloadEntry);
+        long grace = Utils.getSoftPauseGraceMs();
+        if (grace > 0) {
+            // Keep the connections for a while in case the download is resumed soon
+            downloadClient.pause();
+            mDownloadEntry.mPausedClient = downloadClient;
+            mHandler.postDelayed(mClosePausedClient, grace);
+        } else {
+            downloadClient.cancel();
+        }
         mDownloadEntry.mUpdate.setStatus(UpdateStatus.PAUSED);
         mDownloadInfo.setEta(0);
         notifyUpdateChange(UpdateStatus.PAUSED);
+        tryReleaseWakelock();
+        return true;
+    }
+
+    /**
+     * Close the connections kept by pauseDownload(), after which resuming starts
+     * over from the journal.
+     */
+    private void closePausedClient() {
+        mHandler.removeCallbacks(mClosePausedClient);
+        DownloadClient downloadClient = mDownloadEntry.mPausedClient;
+        if (downloadClient != null) {
+            Log.d(TAG, "Closing the connections of the paused download");
+            mDownloadEntry.mPausedClient = null;
+            downloadClient.cancel();
+        }
+    }
+
+    /**
+     * Forget the paused client once it stopped on its own, there is nothing left to
+     * close then.
+     *
+     * @return whether there was a paused client
+     */
+    private boolean dropPausedClient() {
+        if (mDownloadEntry.mPausedClient == null) {
+            return false;
+        }
+        mHandler.removeCallbacks(mClosePausedClient);
+        mDownloadEntry.mPausedClient = null;
         return true;
     }
 
     public void removeUpdate(boolean cleanupLocalOnly) {
+        closePausedClient();
+        mHandler.removeCallbacks(mRetryDownload);
+        mPausedForDeviceHealth = false;
         Utils.setPersistentStatus(mContext, UpdateStatus.Persistent.UNKNOWN);
         Utils.cleanupDownloadsDir(mContext);
         if (!cleanupLocalOnly){
@@ -440,6 +779,10 @@ public class UpdaterController {
         return mVerifyingUpdate;
     }
 
+    public int getVerifyProgress() {
+        return mVerifyProgress;
+    }
+
     public boolean isInstallingUpdate() {
         return UpdateInstaller.isInstalling() ||
                 ABUpdateInstaller.isInstallingUpdate(mContext);
@@ -452,11 +795,18 @@ public class UpdaterController {
     private class DownloadEntry {
         Update mUpdate;
         DownloadClient mDownloadClient;
+        // Paused but still connected
+        DownloadClient mPausedClient;
+        PackageVerifier mVerifier;
+        DownloadRetryPolicy mRetryPolicy = new DownloadRetryPolicy();
 
         private DownloadEntry() {
         }
 
         private void setUpdate(Update update) {
+            if (mUpdate == null || !Objects.equals(mUpdate.getDownloadId(), update.getDownloadId())) {
+                mRetryPolicy = new DownloadRetryPolicy();
+            }
             mUpdate = update;
         }
 
@@ -468,6 +818,7 @@ public class UpdaterController {
     public class DownloadInfo {
         long eta;
         int progress;
+        long downloaded;
 
         public DownloadInfo() {
         }
@@ -487,6 +838,18 @@ public class UpdaterController {
         public void setProgress(int progress) {
             this.progress = progress;
         }
+
+        /**
+         * @return the number of bytes downloaded. The destination file is allocated
+         * up front, its length doesn't tell.
+         */
+        public long getDownloaded() {
+            return downloaded;
+        }
+
+        public void setDownloaded(long downloaded) {
+            this.downloaded = downloaded;
+        }
     }
 
     public class InstallInfo {
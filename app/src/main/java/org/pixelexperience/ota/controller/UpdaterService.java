@@ -70,6 +70,7 @@ public class UpdaterService extends Service {
         super.onCreate();
 
         mUpdaterController = UpdaterController.getInstance(this);
+        mUpdaterController.setDeviceHealthMonitoring(true);
 
         mNotificationManager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
         NotificationChannel notificationChannel = new NotificationChannel(
@@ -99,6 +100,8 @@ public class UpdaterService extends Service {
                     handleDownloadProgressChange();
                 } else if (UpdaterController.ACTION_INSTALL_PROGRESS.equals(intent.getAction())) {
                     handleInstallProgress();
+                } else if (UpdaterController.ACTION_VERIFY_PROGRESS.equals(intent.getAction())) {
+                    handleVerifyProgress();
                 } else if (UpdaterController.ACTION_UPDATE_REMOVED.equals(intent.getAction())) {
                     mNotificationBuilder.setExtras(null);
                     mNotificationManager.cancel(NOTIFICATION_ID);
@@ -122,6 +125,7 @@ public class UpdaterService extends Service {
         IntentFilter intentFilter = new IntentFilter();
         intentFilter.addAction(UpdaterController.ACTION_DOWNLOAD_PROGRESS);
         intentFilter.addAction(UpdaterController.ACTION_INSTALL_PROGRESS);
+        intentFilter.addAction(UpdaterController.ACTION_VERIFY_PROGRESS);
         intentFilter.addAction(UpdaterController.ACTION_UPDATE_STATUS);
         intentFilter.addAction(UpdaterController.ACTION_UPDATE_REMOVED);
         intentFilter.addAction(ABUpdateInstaller.ACTION_RESTART_PENDING);
@@ -131,18 +135,21 @@ public class UpdaterService extends Service {
     @Override
     public void onDestroy() {
         LocalBroadcastManager.getInstance(this).unregisterReceiver(mBroadcastReceiver);
+        mUpdaterController.setDeviceHealthMonitoring(false);
         super.onDestroy();
     }
 
     @Override
     public IBinder onBind(Intent intent) {
         mHasClients = true;
+        mUpdaterController.setForeground(true);
         return mBinder;
     }
 
     @Override
     public boolean onUnbind(Intent intent) {
         mHasClients = false;
+        mUpdaterController.setForeground(false);
         tryStopSelf();
         return false;
     }
@@ -170,13 +177,19 @@ public class UpdaterService extends Service {
             }
         } else if (ACTION_INSTALL_UPDATE.equals(intent.getAction())) {
             UpdateInfo update = mUpdaterController.getCurrentUpdate();
-            if (Utils.getPersistentStatus(this) != UpdateStatus.Persistent.VERIFIED) {
+            boolean verified =
+                    Utils.getPersistentStatus(this) == UpdateStatus.Persistent.VERIFIED;
+            if (!verified && !Utils.useStreamingInstall()) {
                 throw new IllegalArgumentException(update.getDownloadId() + " is not verified");
             }
             if (Utils.isABDevice()) {
                 ABUpdateInstaller installer = ABUpdateInstaller.getInstance(this,
                         mUpdaterController);
-                installer.install();
+                if (verified) {
+                    installer.install();
+                } else {
+                    installer.installStreaming();
+                }
             } else {
                 UpdateInstaller installer = UpdateInstaller.getInstance(this,
                         mUpdaterController);
@@ -192,7 +205,9 @@ public class UpdaterService extends Service {
 
     private void tryStopSelf() {
         if (!mHasClients && !mUpdaterController.hasActiveDownloads() &&
-                !mUpdaterController.isInstallingUpdate()) {
+                !mUpdaterController.isInstallingUpdate() &&
+                !mUpdaterController.isWaitingForDeviceHealth() &&
+                !mUpdaterController.isRetryPending()) {
             Log.d(TAG, "Service no longer needed, stopping");
             stopSelf();
         }
@@ -228,7 +243,7 @@ public class UpdaterService extends Service {
                 break;
             }
             case DOWNLOADING: {
-                String text = getString(R.string.downloading_notification);
+                String text = getDownloadingTitle();
                 setNotificationTitle(text);
                 mNotificationBuilder.setStyle(mNotificationStyle);
                 mNotificationBuilder.setSmallIcon(android.R.drawable.stat_sys_download);
@@ -247,7 +262,11 @@ public class UpdaterService extends Service {
                 // In case we pause before the first progress update
                 mNotificationBuilder.setProgress(100, progress, progress == 0);
                 mNotificationBuilder.mActions.clear();
-                String text = getString(R.string.download_paused_notification);
+                String text = mUpdaterController.isWaitingForDeviceHealth() ?
+                        getString(mUpdaterController.getDeviceHealth().isThermal() ?
+                                R.string.download_paused_hot_notification :
+                                R.string.download_paused_battery_notification) :
+                        getString(R.string.download_paused_notification);
                 setNotificationTitle(text);
                 mNotificationBuilder.setStyle(mNotificationStyle);
                 mNotificationBuilder.setSmallIcon(R.drawable.ic_pause);
@@ -275,6 +294,20 @@ public class UpdaterService extends Service {
                 tryStopSelf();
                 break;
             }
+            case NOT_ENOUGH_SPACE: {
+                stopForeground(STOP_FOREGROUND_DETACH);
+                mNotificationBuilder.setProgress(0, 0, false);
+                mNotificationBuilder.mActions.clear();
+                String text = getString(R.string.download_not_enough_space_notification);
+                setNotificationTitle(text);
+                mNotificationBuilder.setStyle(mNotificationStyle);
+                mNotificationBuilder.setSmallIcon(R.drawable.ic_warning);
+                mNotificationBuilder.setOngoing(false);
+                mNotificationBuilder.setAutoCancel(false);
+                mNotificationManager.notify(NOTIFICATION_ID, mNotificationBuilder.build());
+                tryStopSelf();
+                break;
+            }
             case VERIFYING: {
                 mNotificationBuilder.setOngoing(false);
                 mNotificationManager.cancel(NOTIFICATION_ID);
@@ -326,7 +359,7 @@ public class UpdaterService extends Service {
                 mNotificationBuilder.setProgress(0, 0, true);
                 String text = UpdateInstaller.isInstalling() ?
                         getString(R.string.dialog_prepare_zip_message) :
-                        getString(R.string.installing_update);
+                        getInstallingTitle(false);
                 setNotificationTitle(text);
                 mNotificationBuilder.setOngoing(true);
                 mNotificationBuilder.setAutoCancel(false);
@@ -358,7 +391,7 @@ public class UpdaterService extends Service {
         mNotificationBuilder.setProgress(100, progress, progress == 0);
         String percentage = NumberFormat.getPercentInstance().format(
                 progress / 100.f);
-        setNotificationTitle(getString(R.string.downloading_notification));
+        setNotificationTitle(getDownloadingTitle());
         mNotificationStyle.setSummaryText(percentage);
         mNotificationManager.notify(NOTIFICATION_ID, mNotificationBuilder.build());
     }
@@ -370,13 +403,38 @@ public class UpdaterService extends Service {
         String percent = NumberFormat.getPercentInstance().format(progress / 100.f);
         boolean notAB = UpdateInstaller.isInstalling();
         setNotificationTitle(notAB ? getString(R.string.dialog_prepare_zip_message) :
-                installInfo.isFinalizing() ?
-                        getString(R.string.finalizing_package) :
-                        getString(R.string.installing_update));
+                getInstallingTitle(installInfo.isFinalizing()));
+        mNotificationStyle.setSummaryText(percent);
+        mNotificationManager.notify(NOTIFICATION_ID, mNotificationBuilder.build());
+    }
+
+    private void handleVerifyProgress() {
+        int progress = mUpdaterController.getVerifyProgress();
+        mNotificationBuilder.setProgress(100, progress, progress == 0);
+        String percent = NumberFormat.getPercentInstance().format(progress / 100.f);
+        setNotificationTitle(getString(R.string.verifying_download_notification));
         mNotificationStyle.setSummaryText(percent);
         mNotificationManager.notify(NOTIFICATION_ID, mNotificationBuilder.build());
     }
 
+    private String getDownloadingTitle() {
+        return getString(mUpdaterController.getDeviceHealth().shouldThrottle() ?
+                R.string.downloading_throttled_notification :
+                R.string.downloading_notification);
+    }
+
+    /**
+     * @return the title of an A/B install, which the device health can suspend
+     */
+    private String getInstallingTitle(boolean finalizing) {
+        if (ABUpdateInstaller.isSuspended()) {
+            return getString(mUpdaterController.getDeviceHealth().isThermal() ?
+                    R.string.installing_update_suspended_hot :
+                    R.string.installing_update_suspended_battery);
+        }
+        return getString(finalizing ? R.string.finalizing_package : R.string.installing_update);
+    }
+
     private void setNotificationTitle(String title) {
         mNotificationStyle.setSummaryText(null);
         mNotificationBuilder.setContentTitle(title);
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2023 The PixelExperience Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixelexperience.ota.download;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Direct buffers that connections read into and the disk writer gives back once
+ * written. Since there's a fixed number of them, reading can't get further ahead
+ * of writing than that. Buffers are only allocated once needed, small downloads
+ * never get to use them all. While paused no buffer is handed out, so connections
+ * stop reading and the servers are held back by flow control.
+ */
+final class BufferPool {
+
+    private final Deque<ByteBuffer> mFree = new ArrayDeque<>();
+    private final int mCount;
+    private final int mBufferSize;
+    private final Clock mClock;
+    private int mAllocated = 0;
+    private boolean mPaused = false;
+    private volatile Runnable mAvailableListener;
+
+    BufferPool(int count, int bufferSize, Clock clock) {
+        mCount = count;
+        mBufferSize = bufferSize;
+        mClock = clock;
+    }
+
+    int getBufferSize() {
+        return mBufferSize;
+    }
+
+    /**
+     * @return a cleared buffer, or null if they're all in use or the pool is paused
+     */
+    synchronized ByteBuffer poll() {
+        if (mPaused) {
+            return null;
+        }
+        ByteBuffer buffer = mFree.poll();
+        if (buffer != null) {
+            buffer.clear();
+        } else if (mAllocated < mCount) {
+            mAllocated++;
+            buffer = ByteBuffer.allocateDirect(mBufferSize);
+        }
+        return buffer;
+    }
+
+    /**
+     * @return a cleared buffer, or null if none was available in time
+     */
+    synchronized ByteBuffer poll(long timeoutMs) throws InterruptedException {
+        long deadline = mClock.elapsedRealtime() + timeoutMs;
+        ByteBuffer buffer;
+        while ((buffer = poll()) == null) {
+            long left = deadline - mClock.elapsedRealtime();
+            if (left <= 0) {
+                return null;
+            }
+            wait(left);
+        }
+        return buffer;
+    }
+
+    /**
+     * @return whether every buffer is in use
+     */
+    synchronized boolean isExhausted() {
+        return mFree.isEmpty() && mAllocated == mCount;
+    }
+
+    void release(ByteBuffer buffer) {
+        synchronized (this) {
+            mFree.add(buffer);
+            notifyAll();
+        }
+        notifyAvailable();
+    }
+
+    void setPaused(boolean paused) {
+        synchronized (this) {
+            mPaused = paused;
+            notifyAll();
+        }
+        if (!paused) {
+            notifyAvailable();
+        }
+    }
+
+    private void notifyAvailable() {
+        Runnable listener = mAvailableListener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Set what to run when a buffer may have become available, for users that
+     * can't wait.
+     */
+    void setAvailableListener(Runnable listener) {
+        mAvailableListener = listener;
+    }
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2023 The PixelExperience Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixelexperience.ota.download;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Bytes read from a connection, waiting to be written at the given position.
+ */
+final class Chunk {
+    final Segment mSegment;
+    final long mPosition;
+    final ByteBuffer mBuffer;
+
+    Chunk(Segment segment, long position, ByteBuffer buffer) {
+        mSegment = segment;
+        mPosition = position;
+        mBuffer = buffer;
+    }
+}
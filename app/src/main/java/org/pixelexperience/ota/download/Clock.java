@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2023 The PixelExperience Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixelexperience.ota.download;
+
+import android.os.SystemClock;
+
+/**
+ * Where downloads take the time from. The framework clock in production, tests
+ * running on a plain JVM bring their own.
+ */
+interface Clock {
+
+    Clock SYSTEM = SystemClock::elapsedRealtime;
+
+    /**
+     * @return milliseconds since some fixed point, never going backwards
+     */
+    long elapsedRealtime();
+}
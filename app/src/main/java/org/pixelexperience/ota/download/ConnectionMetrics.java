@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2023 The PixelExperience Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixelexperience.ota.download;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * How often connecting over each address family worked since the app started,
+ * counting every attempt of the connection races.
+ */
+final class ConnectionMetrics {
+
+    private static final Family IPV4 = new Family("IPv4");
+    private static final Family IPV6 = new Family("IPv6");
+
+    private ConnectionMetrics() {
+    }
+
+    private static Family get(InetAddress address) {
+        return address instanceof Inet6Address ? IPV6 : IPV4;
+    }
+
+    static void addAttempt(InetAddress address) {
+        get(address).mAttempts.incrementAndGet();
+    }
+
+    static void addFailure(InetAddress address) {
+        get(address).mFailures.incrementAndGet();
+    }
+
+    static void addSuccess(InetAddress address) {
+        get(address).mSuccesses.incrementAndGet();
+    }
+
+    /**
+     * @return the attempts, successes and success rate of each family, attempts
+     * that lost a race neither succeeded nor failed
+     */
+    static String describe() {
+        return IPV6 + ", " + IPV4;
+    }
+
+    private static final class Family {
+
+        private final String mName;
+        private final AtomicInteger mAttempts = new AtomicInteger();
+        private final AtomicInteger mFailures = new AtomicInteger();
+        private final AtomicInteger mSuccesses = new AtomicInteger();
+
+        private Family(String name) {
+            mName = name;
+        }
+
+        @Override
+        public String toString() {
+            int successes = mSuccesses.get();
+            int completed = successes + mFailures.get();
+            return String.format(Locale.ROOT, "%s %d/%d connected (%s)", mName, successes,
+                    mAttempts.get(), completed > 0 ?
+                            String.format(Locale.ROOT, "%d%%", successes * 100 / completed) :
+                            "n/a");
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2023 The PixelExperience Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixelexperience.ota.download;
+
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Bytes downloaded over each type of network during the current billing window,
+ * kept across process restarts. Downloads stop using metered networks once the
+ * metered bytes of the window reach the budget.
+ */
+final class DataBudget {
+
+    private static final String TAG = "DataBudget";
+
+    private static final int VERSION = 1;
+
+    // Every session of every download counts into the same instance, so none
+    // overwrites what another counted
+    private static final Map<File, DataBudget> sBudgets = new HashMap<>();
+
+    private final AtomicFile mFile;
+    private int mBillingDay = 1;
+    // Wall clock time the current window started at
+    private long mWindowStart;
+    private long mMeteredBytes;
+    private final Map<String, Long> mBytes = new HashMap<>();
+    private boolean mDirty = false;
+
+    private DataBudget(File file) {
+        mFile = new AtomicFile(file);
+    }
+
+    /**
+     * @param billingDay the day of the month billing windows start on, windows of
+     *                   shorter months start on their last day instead
+     * @return the counters kept in the given file, empty if there are none or they
+     * can't be read
+     */
+    static DataBudget load(File file, int billingDay) {
+        DataBudget budget;
+        synchronized (sBudgets) {
+            budget = sBudgets.get(file);
+            if (budget == null) {
+                budget = new DataBudget(file);
+                budget.read();
+                sBudgets.put(file, budget);
+            }
+        }
+        synchronized (budget) {
+            budget.mBillingDay = billingDay;
+            budget.checkWindow();
+        }
+        return budget;
+    }
+
+    /**
+     * @return when the billing window including the given time started
+     */
+    static long getWindowStart(long now, int billingDay) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(now);
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        int today = calendar.get(Calendar.DAY_OF_MONTH);
+        calendar.set(Calendar.DAY_OF_MONTH, Math.min(billingDay,
+                calendar.getActualMaximum(Calendar.DAY_OF_MONTH)));
+        if (calendar.get(Calendar.DAY_OF_MONTH) > today) {
+            calendar.set(Calendar.DAY_OF_MONTH, 1);
+            calendar.add(Calendar.MONTH, -1);
+            calendar.set(Calendar.DAY_OF_MONTH, Math.min(billingDay,
+                    calendar.getActualMaximum(Calendar.DAY_OF_MONTH)));
+        }
+        return calendar.getTimeInMillis();
+    }
+
+    private void read() {
+        if (!mFile.getBaseFile().exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(mFile.readFully()))) {
+            if (in.readInt() != VERSION) {
+                throw new IOException("Unknown data budget version");
+            }
+            mWindowStart = in.readLong();
+            mMeteredBytes = in.readLong();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                mBytes.put(in.readUTF(), in.readLong());
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read " + mFile.getBaseFile(), e);
+            mWindowStart = 0;
+            mMeteredBytes = 0;
+            mBytes.clear();
+        }
+    }
+
+    /**
+     * Write the counters if anything was counted since they were last written.
+     */
+    synchronized void save() {
+        if (!mDirty) {
+            return;
+        }
+        FileOutputStream fos = null;
+        try {
+            fos = mFile.startWrite();
+            DataOutputStream out = new DataOutputStream(fos);
+            out.writeInt(VERSION);
+            out.writeLong(mWindowStart);
+            out.writeLong(mMeteredBytes);
+            out.writeInt(mBytes.size());
+            for (Map.Entry<String, Long> entry : mBytes.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue());
+            }
+            out.flush();
+            mFile.finishWrite(fos);
+            mDirty = false;
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write " + mFile.getBaseFile(), e);
+            if (fos != null) {
+                mFile.failWrite(fos);
+            }
+        }
+    }
+
+    /**
+     * Start counting from zero if a new billing window began.
+     */
+    private void checkWindow() {
+        long windowStart = getWindowStart(System.currentTimeMillis(), mBillingDay);
+        if (windowStart != mWindowStart) {
+            mWindowStart = windowStart;
+            mMeteredBytes = 0;
+            mBytes.clear();
+            mDirty = true;
+        }
+    }
+
+    synchronized void add(DownloadNetwork network, long bytes) {
+        checkWindow();
+        mBytes.put(network.getType(), mBytes.getOrDefault(network.getType(), 0L) + bytes);
+        if (network.isMetered()) {
+            mMeteredBytes += bytes;
+        }
+        mDirty = true;
+    }
+
+    /**
+     * @param budget how many bytes metered networks may take per window, 0 for no
+     *               limit
+     */
+    synchronized boolean isExhausted(long budget) {
+        checkWindow();
+        return budget > 0 && mMeteredBytes >= budget;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return mMeteredBytes + " metered bytes since " + mWindowStart + ", by network " +
+                mBytes;
+    }
+}
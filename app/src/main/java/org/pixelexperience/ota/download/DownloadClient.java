@@ -16,8 +16,11 @@
  */
 package org.pixelexperience.ota.download;
 
+import android.content.Context;
+
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.Map;
 
@@ -31,28 +34,70 @@ public interface DownloadClient {
     /**
      * Resume the download. The download will fail if the server can't fulfil the
      * partial content request and DownloadCallback.onFailure() will be called.
+     * If the resume can be validated and the file changed on the server, the
+     * download starts over instead.
+     * A download stopped with pause() continues right away on the connections it kept.
      * This method has no effect if the download already started or the destination
      * file doesn't exist.
      */
     void resume();
 
     /**
-     * Cancel the download. This method has no effect if the download isn't ongoing.
+     * Stop reading from the network but keep the connections open, so that resume()
+     * doesn't have to set them up again. The servers are held back by flow control,
+     * they may still close the connections after a while. Use cancel() to close them.
+     * This method has no effect if the download isn't ongoing.
+     */
+    void pause();
+
+    /**
+     * Cancel the download. Connections are closed right away, even if stalled, and
+     * DownloadCallback.onFailure() follows as soon as what was already read is on
+     * disk. This method has no effect if the download isn't ongoing.
      */
     void cancel();
 
+    /**
+     * Tell whether the user is looking at the download, which picks the rate limit
+     * that applies. Takes effect right away on the open connections.
+     */
+    void setForeground(boolean foreground);
+
+    /**
+     * Change the rate limits set with the builder, in bytes per second, 0 for none.
+     * Takes effect right away on the open connections.
+     */
+    void setRateLimits(long foregroundBytesPerSecond, long backgroundBytesPerSecond);
+
     interface DownloadCallback {
         void onResponse(int statusCode, String url, Headers headers);
 
         void onSuccess(File destination);
 
         void onFailure(boolean cancelled);
+
+        /**
+         * Like onFailure(boolean), with the error that stopped the download, if any.
+         * Network errors are plain IOExceptions, HttpStatusException and
+         * ResumeException tell the ones coming from the server.
+         */
+        default void onFailure(boolean cancelled, IOException error) {
+            onFailure(cancelled);
+        }
     }
 
     interface ProgressListener {
         void update(long bytesRead, long contentLength, long speed, long eta, boolean done);
     }
 
+    /**
+     * Receives the content of the destination file in order, starting from its first
+     * byte. On resume the part already on disk is read back first.
+     */
+    interface ContentListener {
+        void update(ByteBuffer content);
+    }
+
     interface Headers {
         String get(String name);
 
@@ -60,11 +105,27 @@ public interface DownloadClient {
     }
 
     final class Builder {
-        private String mUrl;
-        private File mDestination;
-        private DownloadClient.DownloadCallback mCallback;
-        private DownloadClient.ProgressListener mProgressListener;
-        private boolean mUseDuplicateLinks;
+        String mUrl;
+        File mDestination;
+        DownloadClient.DownloadCallback mCallback;
+        DownloadClient.ProgressListener mProgressListener;
+        DownloadClient.ContentListener mContentListener;
+        boolean mUseDuplicateLinks;
+        int mSegments = 1;
+        boolean mUseMirrorStriping;
+        boolean mUseJournal;
+        boolean mPreallocate;
+        boolean mUseNonBlockingIo;
+        File mScorecardFile;
+        NetworkSource mNetworkSource;
+        boolean mUseNetworkBonding;
+        long mMeteredNetworkCap;
+        File mDataBudgetFile;
+        long mMeteredDataBudget;
+        int mBillingDay = 1;
+        long mForegroundRateLimit;
+        long mBackgroundRateLimit;
+        Clock mClock = Clock.SYSTEM;
 
         public DownloadClient build() throws IOException {
             if (mUrl == null) {
@@ -73,9 +134,12 @@ public interface DownloadClient {
                 throw new IllegalStateException("No download destination defined");
             } else if (mCallback == null) {
                 throw new IllegalStateException("No download callback defined");
+            } else if (mUseNetworkBonding && mNetworkSource == null) {
+                throw new IllegalStateException("Network bonding requires a network source");
+            } else if (mDataBudgetFile != null && mNetworkSource == null) {
+                throw new IllegalStateException("A data budget requires a network source");
             }
-            return new HttpURLConnectionClient(mUrl, mDestination, mProgressListener, mCallback,
-                    mUseDuplicateLinks);
+            return new HttpDownloadClient(this);
         }
 
         public Builder setUrl(String url) {
@@ -98,9 +162,149 @@ public interface DownloadClient {
             return this;
         }
 
+        public Builder setContentListener(DownloadClient.ContentListener contentListener) {
+            mContentListener = contentListener;
+            return this;
+        }
+
         public Builder setUseDuplicateLinks(boolean useDuplicateLinks) {
             mUseDuplicateLinks = useDuplicateLinks;
             return this;
         }
+
+        /**
+         * Split the download in up to the given number of byte ranges fetched over
+         * parallel connections. The download falls back to a single connection if the
+         * server doesn't accept range requests or the file is too small.
+         */
+        public Builder setSegments(int segments) {
+            mSegments = segments;
+            return this;
+        }
+
+        /**
+         * Fetch the segments from the duplicate mirrors advertised by the server at
+         * the same time instead of using them only as fallbacks. Requires duplicate
+         * links and more than one segment.
+         */
+        public Builder setUseMirrorStriping(boolean useMirrorStriping) {
+            mUseMirrorStriping = useMirrorStriping;
+            return this;
+        }
+
+        /**
+         * Keep a journal of the ranges written to the destination, synced to disk
+         * periodically, so that a resume can continue exactly where the download
+         * stopped even if the process was killed. The journal is removed once the
+         * download completes.
+         */
+        public Builder setUseJournal(boolean useJournal) {
+            mUseJournal = useJournal;
+            return this;
+        }
+
+        /**
+         * Allocate the whole destination file as soon as its size is known. The
+         * download fails early if it doesn't fit. Requires the journal, since the
+         * length of the file no longer tells how much was downloaded.
+         */
+        public Builder setPreallocate(boolean preallocate) {
+            mPreallocate = preallocate;
+            return this;
+        }
+
+        /**
+         * Serve all the connections of the download from a single thread using
+         * non-blocking sockets, reading straight into the buffers handed to the disk
+         * writer. Otherwise each connection blocks a thread of its own.
+         */
+        public Builder setUseNonBlockingIo(boolean useNonBlockingIo) {
+            mUseNonBlockingIo = useNonBlockingIo;
+            return this;
+        }
+
+        /**
+         * Keep how each mirror host performs in the given file, and try the duplicate
+         * links that did best first rather than in the order the server gave.
+         */
+        public Builder setMirrorScorecard(File file) {
+            mScorecardFile = file;
+            return this;
+        }
+
+        /**
+         * Bind the connections to the default network and move them to the next one
+         * when it's lost or replaced, continuing where they were. While there's no
+         * network the download waits rather than failing. Metered networks are
+         * waited out too unless allowed.
+         */
+        public Builder setNetworkHandover(Context context, boolean allowMetered) {
+            mNetworkSource = new NetworkMonitor(context, allowMetered);
+            return this;
+        }
+
+        /**
+         * Like setNetworkHandover(), with networks from the given source rather than
+         * the ones of the system.
+         */
+        public Builder setNetworkSource(NetworkSource networkSource) {
+            mNetworkSource = networkSource;
+            return this;
+        }
+
+        /**
+         * Also fetch ranges over every other network that can be used, such as
+         * cellular next to Wi-Fi. Connections that run out of work take over part of
+         * the range of another in proportion to the throughput of their networks.
+         * Requires a network source and a server accepting range requests.
+         */
+        public Builder setUseNetworkBonding(boolean useNetworkBonding) {
+            mUseNetworkBonding = useNetworkBonding;
+            return this;
+        }
+
+        /**
+         * Stop using a metered network next to the default one once this many bytes
+         * were received over it, 0 for no limit.
+         */
+        public Builder setMeteredNetworkCap(long bytes) {
+            mMeteredNetworkCap = bytes;
+            return this;
+        }
+
+        /**
+         * Count the bytes received over each type of network in the given file, per
+         * billing window starting on the given day of the month. Once metered
+         * networks took the budget of the window, 0 for none, the download only goes
+         * on over unmetered ones, waiting for one if needed, or for the next window.
+         * Requires a network source.
+         */
+        public Builder setDataBudget(File file, long meteredBytes, int billingDay) {
+            mDataBudgetFile = file;
+            mMeteredDataBudget = meteredBytes;
+            mBillingDay = billingDay;
+            return this;
+        }
+
+        /**
+         * Hold the combined throughput of the connections to the given number of
+         * bytes per second, 0 for no limit, depending on whether the download is in
+         * the foreground. It starts in the foreground, see
+         * DownloadClient.setForeground().
+         */
+        public Builder setRateLimits(long foregroundBytesPerSecond,
+                                     long backgroundBytesPerSecond) {
+            mForegroundRateLimit = foregroundBytesPerSecond;
+            mBackgroundRateLimit = backgroundBytesPerSecond;
+            return this;
+        }
+
+        /**
+         * Take the time from the given clock rather than the system one, for tests.
+         */
+        Builder setClock(Clock clock) {
+            mClock = clock;
+            return this;
+        }
     }
 }
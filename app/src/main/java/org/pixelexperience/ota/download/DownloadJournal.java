@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2023 The PixelExperience Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixelexperience.ota.download;
+
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records which byte ranges of a download are safely on disk, along with what
+ * is needed to check that the server still serves the same file. Kept next to
+ * the destination so that a download can continue after the process dies.
+ */
+public class DownloadJournal {
+
+    private static final String TAG = "DownloadJournal";
+
+    private static final String SUFFIX = ".journal";
+    private static final int VERSION = 2;
+
+    private final String mUrl;
+    private final long mSize;
+    private String mMirror;
+    // Duplicate links of the mirror by priority
+    private final LinkedHashMap<String, Integer> mDuplicates = new LinkedHashMap<>();
+    private String mETag;
+    private String mLastModified;
+    // Sorted, non-overlapping [start, end) ranges
+    private final List<long[]> mRanges = new ArrayList<>();
+
+    DownloadJournal(String url, long size) {
+        mUrl = url;
+        mSize = size;
+    }
+
+    private static AtomicFile getJournalFile(File destination) {
+        return new AtomicFile(new File(destination.getParentFile(),
+                destination.getName() + SUFFIX));
+    }
+
+    public static boolean exists(File destination) {
+        return getJournalFile(destination).getBaseFile().exists();
+    }
+
+    /**
+     * @return the journal of the given download, or null if there's none or it
+     * can't be read
+     */
+    public static DownloadJournal load(File destination) {
+        AtomicFile journalFile = getJournalFile(destination);
+        if (!journalFile.getBaseFile().exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(journalFile.readFully()))) {
+            int version = in.readInt();
+            if (version < 1 || version > VERSION) {
+                throw new IOException("Unknown journal version");
+            }
+            DownloadJournal journal = new DownloadJournal(in.readUTF(), in.readLong());
+            journal.mMirror = readString(in);
+            if (version >= 2) {
+                int duplicates = in.readInt();
+                for (int i = 0; i < duplicates; i++) {
+                    journal.mDuplicates.put(in.readUTF(), in.readInt());
+                }
+            }
+            journal.mETag = readString(in);
+            journal.mLastModified = readString(in);
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                journal.commit(in.readLong(), in.readLong());
+            }
+            return journal;
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read journal of " + destination, e);
+            return null;
+        }
+    }
+
+    public static void delete(File destination) {
+        getJournalFile(destination).delete();
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    /**
+     * Write the journal atomically. The data of the committed ranges must already
+     * be on disk.
+     */
+    synchronized boolean save(File destination) {
+        AtomicFile journalFile = getJournalFile(destination);
+        FileOutputStream fos = null;
+        try {
+            fos = journalFile.startWrite();
+            DataOutputStream out = new DataOutputStream(fos);
+            out.writeInt(VERSION);
+            out.writeUTF(mUrl);
+            out.writeLong(mSize);
+            writeString(out, mMirror);
+            out.writeInt(mDuplicates.size());
+            for (Map.Entry<String, Integer> duplicate : mDuplicates.entrySet()) {
+                out.writeUTF(duplicate.getKey());
+                out.writeInt(duplicate.getValue());
+            }
+            writeString(out, mETag);
+            writeString(out, mLastModified);
+            out.writeInt(mRanges.size());
+            for (long[] range : mRanges) {
+                out.writeLong(range[0]);
+                out.writeLong(range[1]);
+            }
+            out.flush();
+            journalFile.finishWrite(fos);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write journal of " + destination, e);
+            if (fos != null) {
+                journalFile.failWrite(fos);
+            }
+            return false;
+        }
+    }
+
+    public String getUrl() {
+        return mUrl;
+    }
+
+    public long getSize() {
+        return mSize;
+    }
+
+    public synchronized String getMirror() {
+        return mMirror;
+    }
+
+    /**
+     * @return the duplicate links that came with the mirror, by priority
+     */
+    synchronized Map<String, Integer> getDuplicates() {
+        return new LinkedHashMap<>(mDuplicates);
+    }
+
+    synchronized void setMirror(String mirror, Map<String, Integer> duplicates) {
+        mMirror = mirror;
+        mDuplicates.clear();
+        mDuplicates.putAll(duplicates);
+    }
+
+    public synchronized String getETag() {
+        return mETag;
+    }
+
+    synchronized void setETag(String eTag) {
+        mETag = eTag;
+    }
+
+    public synchronized String getLastModified() {
+        return mLastModified;
+    }
+
+    synchronized void setLastModified(String lastModified) {
+        mLastModified = lastModified;
+    }
+
+    /**
+     * Mark [start, end) as written.
+     */
+    synchronized void commit(long start, long end) {
+        if (start >= end) {
+            return;
+        }
+        int i = 0;
+        while (i < mRanges.size() && mRanges.get(i)[1] < start) {
+            i++;
+        }
+        while (i < mRanges.size() && mRanges.get(i)[0] <= end) {
+            long[] range = mRanges.remove(i);
+            start = Math.min(start, range[0]);
+            end = Math.max(end, range[1]);
+        }
+        mRanges.add(i, new long[]{start, end});
+    }
+
+    public synchronized long getCommittedLength() {
+        long length = 0;
+        for (long[] range : mRanges) {
+            length += range[1] - range[0];
+        }
+        return length;
+    }
+
+    /**
+     * @return the ranges that still have to be downloaded, in order
+     */
+    synchronized List<long[]> getMissingRanges() {
+        List<long[]> missing = new ArrayList<>();
+        long position = 0;
+        for (long[] range : mRanges) {
+            if (range[0] > position) {
+                missing.add(new long[]{position, range[0]});
+            }
+            position = Math.max(position, range[1]);
+        }
+        if (position < mSize) {
+            missing.add(new long[]{position, mSize});
+        }
+        return missing;
+    }
+
+    synchronized long getFirstMissing() {
+        return !mRanges.isEmpty() && mRanges.get(0)[0] == 0 ? mRanges.get(0)[1] : 0;
+    }
+
+    public synchronized boolean isComplete() {
+        return getMissingRanges().isEmpty();
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2023 The PixelExperience Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixelexperience.ota.download;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.UnknownHostException;
+
+/**
+ * A network connections of a download can be bound to.
+ */
+public interface DownloadNetwork {
+
+    boolean isMetered();
+
+    /**
+     * @return what kind of network this is, such as wifi or cellular, to account
+     * for the bytes downloaded over it
+     */
+    default String getType() {
+        return isMetered() ? "metered" : "unmetered";
+    }
+
+    URLConnection openConnection(URL url) throws IOException;
+
+    InetAddress[] getAllByName(String host) throws UnknownHostException;
+
+    /**
+     * Bind a socket that isn't connected yet to the network.
+     */
+    void bindSocket(Socket socket) throws IOException;
+}
@@ -0,0 +1,1408 @@
+/*
+ * Copyright (C) 2023 The PixelExperience Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixelexperience.ota.download;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.cert.CertificateException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.net.ssl.SSLPeerUnverifiedException;
+
+/**
+ * A single start or resume of the download. Requests go through the transport,
+ * which calls back as responses arrive; the writer thread puts what they read
+ * on disk and reports the outcome.
+ */
+final class DownloadSession implements Transport.Listener {
+
+    private static final String TAG = "DownloadSession";
+    // Connections hand what they read to the disk writer through this many buffers,
+    // and stop reading when they're all in use
+    private static final int PIPELINE_BUFFERS = 8;
+    private static final int BUFFER_SIZE = 256 * 1024;
+    // Splitting smaller files isn't worth the additional connections
+    private static final long MIN_SEGMENT_SIZE = 16 * 1024 * 1024;
+    private static final int DEFAULT_PRIORITY = 999999;
+    private static final int MAX_MIRROR_FAILURES = 3;
+    // https://tools.ietf.org/html/rfc6249
+    // https://tools.ietf.org/html/rfc5988#section-5
+    private static final Pattern DUPLICATE_LINK_PATTERN =
+            Pattern.compile("(?i)<(.+)>\\s*;\\s*rel=duplicate(?:.*pri=([0-9]+).*|.*)?");
+    // How often the journal records what was written, at most
+    private static final long JOURNAL_INTERVAL_MS = 5000;
+    static final int CONNECT_TIMEOUT_MS = 5000;
+    private static final int MAX_REDIRECTS = 10;
+    static final long STALL_WINDOW_MS = 20000;
+    // Failed connections are retried this many times in a row, waiting a random
+    // delay of up to RETRY_BASE_MS * 2^retries in between
+    static final int MAX_RETRIES = 6;
+    private static final long RETRY_BASE_MS = 1000;
+    private static final long RETRY_MAX_MS = 30000;
+    // The throughput of each network is sampled this often, the latest sample
+    // weighing this much
+    private static final long NETWORK_RATE_INTERVAL_MS = 1000;
+    private static final double NETWORK_RATE_WEIGHT = 0.25;
+
+    private final HttpDownloadClient mClient;
+    private final String mUrl;
+    final File mDestination;
+    private final DownloadClient.ProgressListener mProgressListener;
+    private final DownloadClient.DownloadCallback mCallback;
+    private final boolean mUseDuplicateLinks;
+    private final int mSegments;
+    private final boolean mUseMirrorStriping;
+    private final boolean mUseJournal;
+    private final boolean mPreallocate;
+    private final boolean mUseNonBlockingIo;
+    private final File mScorecardFile;
+    private final NetworkSource mNetworkSource;
+    private final boolean mUseNetworkBonding;
+    private final long mMeteredNetworkCap;
+    private final File mDataBudgetFile;
+    private final long mMeteredDataBudget;
+    private final int mBillingDay;
+    final RateLimiter mRateLimiter;
+    final Clock mClock;
+    private DownloadJournal mJournal;
+    private long mOffset;
+    // Range of the first request, null to get the whole file
+    private final String mRange;
+    // Validators of the file being downloaded, used to make sure range requests
+    // still refer to the same file
+    private String mETag;
+    private String mLastModified;
+
+    private boolean mResume;
+    private long mTotalBytes = 0;
+    private long mTotalBytesRead = 0;
+    private long mCurSampleBytes = 0;
+    private long mLastMillis = 0;
+    private long mSpeed = -1;
+    private long mEta = -1;
+    private boolean mJustResumed = false;
+    private volatile boolean mCancelled = false;
+    private volatile boolean mAborted = false;
+    private final List<DuplicateLink> mDuplicateLinks = new ArrayList<>();
+    // Duplicates of the redirect target to try if it fails, best first
+    private final Deque<DuplicateLink> mFallbacks = new ArrayDeque<>();
+    // Hosts that were sent a probe this session
+    private final Set<String> mProbedHosts = new HashSet<>();
+    MirrorScorecard mScorecard;
+    // The default network connections are bound to, null while waiting for one
+    DownloadNetwork mNetwork;
+    private final NetworkSource.Listener mNetworkListener = this::onNetworksChanged;
+    private final Map<DownloadNetwork, NetworkUsage> mNetworkUsage = new HashMap<>();
+    private long mLastRateSample;
+    DataBudget mDataBudget;
+    private final List<Segment> mSegmentList = new ArrayList<>();
+    // Segments not picked up by any connection yet
+    private final List<Segment> mPendingSegments = new ArrayList<>();
+    private final List<URL> mMirrors = new ArrayList<>();
+    private final Map<String, Integer> mMirrorFailures = new HashMap<>();
+    private boolean mAcceptsRanges = false;
+    private final Object mJournalLock = new Object();
+    private volatile long mLastCheckpoint;
+    // Connections fill buffers from the pool and queue them for the disk writer,
+    // which gives them back once written
+    final BufferPool mBufferPool;
+    final BlockingQueue<Chunk> mWriteQueue =
+            new ArrayBlockingQueue<>(PIPELINE_BUFFERS + 2);
+    final Chunk mStartOfTransfer = new Chunk(null, 0, null);
+    final Chunk mEndOfTransfer = new Chunk(null, 0, null);
+    private final WriterThread mWriter;
+    final List<SegmentWorker> mWorkers = new ArrayList<>();
+    Transport mTransport;
+    // The first request, its connection becomes the first worker
+    private Transport.Exchange mExchange;
+    private URL mRequestUrl;
+    private long mRequestStart;
+    private int mRedirects = 0;
+    // How long where the redirects led can be cached, and whether the first
+    // request went there straight from the cache
+    private long mCacheTtl = Long.MAX_VALUE;
+    private boolean mFromCache = false;
+    // Failures of the first request in a row, and when to send it again
+    private int mRetries = 0;
+    private long mRetryAt = 0;
+    private final WatchdogThread mWatchdog = new WatchdogThread(this);
+    private SegmentWorker mFirstWorker;
+    private boolean mConnecting = false;
+    private boolean mPaused = false;
+    boolean mEnded = false;
+    private IOException mError;
+    private RandomAccessFile mFile;
+    FileChannel mChannel;
+
+    /**
+     * @param journal what a resume starts from, if there is a journal
+     * @param offset where a resume starts, the first request asks for the rest
+     */
+    DownloadSession(HttpDownloadClient client, boolean resume, DownloadJournal journal,
+                    long offset, String eTag, String lastModified) {
+        mClient = client;
+        mUrl = client.mUrl;
+        mDestination = client.mDestination;
+        mProgressListener = client.mProgressListener;
+        mCallback = client.mCallback;
+        mUseDuplicateLinks = client.mUseDuplicateLinks;
+        mSegments = client.mSegments;
+        mUseMirrorStriping = client.mUseMirrorStriping;
+        mUseJournal = client.mUseJournal;
+        mPreallocate = client.mPreallocate;
+        mUseNonBlockingIo = client.mUseNonBlockingIo;
+        mScorecardFile = client.mScorecardFile;
+        mNetworkSource = client.mNetworkSource;
+        mUseNetworkBonding = client.mUseNetworkBonding;
+        mMeteredNetworkCap = client.mMeteredNetworkCap;
+        mDataBudgetFile = client.mDataBudgetFile;
+        mMeteredDataBudget = client.mMeteredDataBudget;
+        mBillingDay = client.mBillingDay;
+        mRateLimiter = client.mRateLimiter;
+        mClock = client.mClock;
+        mBufferPool = new BufferPool(PIPELINE_BUFFERS, BUFFER_SIZE, mClock);
+        mLastRateSample = mClock.elapsedRealtime();
+        mResume = resume;
+        mJournal = journal;
+        mOffset = offset;
+        mRange = resume ? "bytes=" + offset + "-" : null;
+        mETag = eTag;
+        mLastModified = lastModified;
+        mWriter = new WriterThread(this, client.mContentListener);
+    }
+
+    private static boolean isSuccessCode(int statusCode) {
+        return (statusCode / 100) == 2;
+    }
+
+    private static boolean isRedirectCode(int statusCode) {
+        return (statusCode / 100) == 3;
+    }
+
+    static boolean isPartialContentCode(int statusCode) {
+        return statusCode == 206;
+    }
+
+    /**
+     * @return how long to wait before the given retry. Half of it is random, so that
+     * connections dropped together don't all come back at once.
+     */
+    static long getRetryDelay(int retries) {
+        long delay = Math.min(RETRY_MAX_MS, RETRY_BASE_MS << Math.min(retries - 1, 16));
+        return delay / 2 + (long) (Math.random() * delay / 2);
+    }
+
+    /**
+     * @return whether retrying the connection right away can't help, like when the
+     * certificate of the server isn't trusted
+     */
+    static boolean isPermanentError(IOException e) {
+        if (e instanceof SSLPeerUnverifiedException) {
+            return true;
+        }
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof CertificateException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String getHost(String url) {
+        try {
+            return new URL(url).getHost();
+        } catch (MalformedURLException e) {
+            return "";
+        }
+    }
+
+    /**
+     * @return the value of the If-Range header for a range request, or null if
+     * there's nothing to validate the file with. Weak ETags can't be used.
+     */
+    private String getIfRange() {
+        if (mETag != null && !mETag.startsWith("W/")) {
+            return mETag;
+        }
+        return mLastModified;
+    }
+
+    void setRangeHeaders(Request request, String range) {
+        request.setHeader("Range", range);
+        String ifRange = getIfRange();
+        if (ifRange != null) {
+            request.setHeader("If-Range", ifRange);
+        }
+    }
+
+    void start() {
+        mWriter.start();
+        mWatchdog.start();
+        if (mScorecardFile != null) {
+            mScorecard = MirrorScorecard.load(mScorecardFile);
+        }
+        synchronized (this) {
+            try {
+                mTransport = mUseNonBlockingIo ?
+                        new NioTransport(mBufferPool, mRateLimiter, mClock) :
+                        new UrlConnectionTransport(mBufferPool, mRateLimiter, mClock);
+                if (mNetworkSource != null) {
+                    if (mDataBudgetFile != null) {
+                        mDataBudget = DataBudget.load(mDataBudgetFile, mBillingDay);
+                    }
+                    mNetworkSource.start(mNetworkListener);
+                    mNetwork = selectDefaultNetwork();
+                    if (mNetwork == null) {
+                        Log.d(TAG, "Waiting for a network");
+                        return;
+                    }
+                }
+                connectFirst();
+            } catch (IOException e) {
+                abort(e);
+            }
+        }
+    }
+
+    Request newRequest(URL url) {
+        return new Request(url).setHeader("User-Agent", "org.pixelexperience.ota")
+                .setNetwork(mNetwork);
+    }
+
+    private synchronized boolean isWaitingForNetwork() {
+        return mNetworkSource != null && mNetwork == null;
+    }
+
+    /**
+     * @return whether the given network went away, even if it wasn't reported
+     * yet. Connections failing then don't count as retries, the next network
+     * brings them back.
+     */
+    boolean isNetworkLost(DownloadNetwork network) {
+        return mNetworkSource != null &&
+                (network == null || mNetworkSource.isLost(network));
+    }
+
+    synchronized boolean isBudgetExhausted() {
+        return mDataBudget != null && mDataBudget.isExhausted(mMeteredDataBudget);
+    }
+
+    /**
+     * @return the network to download over by default: the one of the system,
+     * unless it's metered and the data budget is used up, then any unmetered one
+     */
+    private synchronized DownloadNetwork selectDefaultNetwork() {
+        DownloadNetwork network = mNetworkSource.getDefaultNetwork();
+        if (network == null || !network.isMetered() || !isBudgetExhausted()) {
+            return network;
+        }
+        for (DownloadNetwork other : mNetworkSource.getNetworks()) {
+            if (!other.isMetered()) {
+                return other;
+            }
+        }
+        return null;
+    }
+
+    synchronized void onNetworksChanged() {
+        if (isStopped() || mEnded) {
+            return;
+        }
+        DownloadNetwork network = selectDefaultNetwork();
+        if (!Objects.equals(network, mNetwork)) {
+            onDefaultNetworkChanged(network);
+        }
+        updateBonding();
+    }
+
+    /**
+     * Move every connection on the default network to the new one, fetching
+     * what's left from where it stopped, or drop them until there's a network
+     * again. Connections on a network going away can take long to fail on their
+     * own.
+     */
+    private synchronized void onDefaultNetworkChanged(DownloadNetwork network) {
+        mNetwork = network;
+        if (network == null) {
+            Log.d(TAG, "No network to use, waiting for one");
+        } else {
+            Log.d(TAG, "Moving the download to network " + network);
+        }
+        if (mConnecting) {
+            // The first worker isn't set up yet, it's judged by the watchdog later
+            return;
+        }
+        if (mFirstWorker != null) {
+            for (SegmentWorker worker : new ArrayList<>(mWorkers)) {
+                if (worker.mBondedNetwork == null) {
+                    worker.rebind(network != null);
+                }
+            }
+            return;
+        }
+        if (mExchange != null) {
+            mExchange.cancel();
+            mExchange = null;
+        }
+        mRetries = 0;
+        mRetryAt = 0;
+        if (network == null) {
+            return;
+        }
+        try {
+            if (mRequestUrl != null) {
+                connect(mRequestUrl);
+            } else {
+                connectFirst();
+            }
+        } catch (MalformedURLException e) {
+            abort(e);
+        }
+    }
+
+    /**
+     * Send the first request, straight to where the redirects led the last time
+     * if that's still cached. After the process died the cache is gone, then a
+     * resume goes back to the mirror recorded in the journal.
+     */
+    private synchronized void connectFirst() throws MalformedURLException {
+        MirrorCache.Entry entry = MirrorCache.get(mUrl);
+        String target;
+        Map<String, Integer> duplicates;
+        if (entry != null) {
+            Log.d(TAG, "Using cached redirect to " + entry.getTarget());
+            target = entry.getTarget();
+            duplicates = entry.getDuplicates();
+        } else if (mJournal != null && mJournal.getMirror() != null &&
+                !mJournal.getMirror().equals(mUrl)) {
+            Log.d(TAG, "Resuming from journaled mirror " + mJournal.getMirror());
+            target = mJournal.getMirror();
+            duplicates = mJournal.getDuplicates();
+        } else {
+            connect(new URL(mUrl));
+            return;
+        }
+        mFromCache = true;
+        for (Map.Entry<String, Integer> duplicate : duplicates.entrySet()) {
+            mDuplicateLinks.add(new DuplicateLink(duplicate.getKey(), duplicate.getValue()));
+        }
+        mDuplicateLinks.sort(getLinkComparator());
+        mFallbacks.addAll(mDuplicateLinks);
+        connect(new URL(target));
+        probeMirrors();
+    }
+
+    /**
+     * Forget the cached redirect or journaled mirror after it failed us, and go
+     * through the original URL again.
+     */
+    private synchronized void connectUncached(IOException e) {
+        Log.e(TAG, "Cached mirror failed, requesting " + mUrl + " again", e);
+        MirrorCache.remove(mUrl);
+        mFromCache = false;
+        mDuplicateLinks.clear();
+        mFallbacks.clear();
+        mRedirects = 0;
+        try {
+            connect(new URL(mUrl));
+        } catch (MalformedURLException e2) {
+            abort(e2);
+        }
+    }
+
+    /**
+     * Remember where the redirects led, along with the duplicates that didn't
+     * fail, for the next sessions of the same URL.
+     */
+    private synchronized void cacheRedirects(URL target) {
+        MirrorCache.put(mUrl, target.toString(), getDuplicates(), mCacheTtl);
+    }
+
+    /**
+     * @return the duplicate links that didn't fail, by priority
+     */
+    private synchronized LinkedHashMap<String, Integer> getDuplicates() {
+        LinkedHashMap<String, Integer> duplicates = new LinkedHashMap<>();
+        for (DuplicateLink link : mDuplicateLinks) {
+            duplicates.put(link.mUrl, link.mPriority);
+        }
+        return duplicates;
+    }
+
+    private synchronized void connect(URL url) {
+        if (isStopped()) {
+            return;
+        }
+        mRequestUrl = url;
+        mRequestStart = mClock.elapsedRealtime();
+        Request request = newRequest(url);
+        if (mRange != null) {
+            setRangeHeaders(request, mRange);
+        }
+        if (mRedirects > 0) {
+            request.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        }
+        mExchange = mTransport.execute(request, this);
+    }
+
+    /**
+     * Open connections on every other network that can be used, each of them
+     * taking over part of the ranges left, and move the ones whose network is
+     * gone or used up back to the default network.
+     */
+    private synchronized void updateBonding() {
+        if (!mUseNetworkBonding || mFirstWorker == null || !mAcceptsRanges) {
+            return;
+        }
+        List<DownloadNetwork> networks = mNetworkSource.getNetworks();
+        Set<DownloadNetwork> bonded = new HashSet<>();
+        for (SegmentWorker worker : new ArrayList<>(mWorkers)) {
+            DownloadNetwork network = worker.mBondedNetwork;
+            if (network == null) {
+                continue;
+            } else if (network.equals(mNetwork)) {
+                // Already there
+                worker.mBondedNetwork = null;
+            } else if (!networks.contains(network) || isOverCap(network)) {
+                worker.moveToDefaultNetwork();
+            } else {
+                bonded.add(network);
+            }
+        }
+        if (mNetwork == null) {
+            return;
+        }
+        List<URL> mirrors = getStripingMirrors();
+        for (DownloadNetwork network : networks) {
+            if (network.equals(mNetwork) || bonded.contains(network) || isOverCap(network)) {
+                continue;
+            }
+            int count = 0;
+            for (int i = 0; i < Math.max(mSegments, 1); i++) {
+                Segment segment = stealSegment(network);
+                if (segment == null) {
+                    break;
+                }
+                SegmentWorker worker = new SegmentWorker(this, mirrors.get(i % mirrors.size()), segment, null);
+                worker.mBondedNetwork = network;
+                mWorkers.add(worker);
+                worker.fetch();
+                count++;
+            }
+            if (count > 0) {
+                Log.d(TAG, "Bonding " + count + " connections over network " + network);
+            }
+        }
+    }
+
+    synchronized NetworkUsage getNetworkUsage(DownloadNetwork network) {
+        NetworkUsage usage = mNetworkUsage.get(network);
+        if (usage == null) {
+            usage = new NetworkUsage();
+            mNetworkUsage.put(network, usage);
+        }
+        return usage;
+    }
+
+    /**
+     * @return whether the network is metered and the download used as much of
+     * it as allowed, or the data budget is used up. The cap only applies to
+     * networks used alongside the default one.
+     */
+    synchronized boolean isOverCap(DownloadNetwork network) {
+        if (!network.isMetered()) {
+            return false;
+        } else if (isBudgetExhausted()) {
+            return true;
+        }
+        return mMeteredNetworkCap > 0 && !network.equals(mNetwork) &&
+                getNetworkUsage(network).mBytes >= mMeteredNetworkCap;
+    }
+
+    /**
+     * @return the share of the range left to a connection on the victim network
+     * that a connection on the thief network should take, so that both finish
+     * at the same time at the throughput measured on each
+     */
+    private synchronized double getStealShare(DownloadNetwork thief,
+                                              DownloadNetwork victim) {
+        if (!mUseNetworkBonding || thief == null || victim == null ||
+                thief.equals(victim)) {
+            return 0.5;
+        }
+        long thiefRate = getConnectionRate(thief);
+        long victimRate = getConnectionRate(victim);
+        if (thiefRate == 0 || victimRate == 0) {
+            return 0.5;
+        }
+        double share = (double) thiefRate / (thiefRate + victimRate);
+        return Math.min(Math.max(share, 0.1), 0.9);
+    }
+
+    private synchronized long getConnectionRate(DownloadNetwork network) {
+        int connections = 0;
+        for (SegmentWorker worker : mWorkers) {
+            if (network.equals(worker.getNetwork()) && worker.mExchange != null) {
+                connections++;
+            }
+        }
+        return getNetworkUsage(network).mRate / Math.max(connections, 1);
+    }
+
+    private void calculateSpeed(boolean justResumed) {
+        final long millis = mClock.elapsedRealtime();
+        if (justResumed) {
+            // If we don't start over with these after resumption, we get huge numbers for
+            // ETA since the delta will grow, resulting in a very low speed
+            mLastMillis = millis;
+            mSpeed = -1; // we don't want the moving avg with values from who knows when
+
+            // need to do this as well, otherwise the second time we call calculateSpeed(),
+            // the difference (mTotalBytesRead - mCurSampleBytes) will be larger than expected,
+            // resulting in a higher speed calculation
+            mCurSampleBytes = mTotalBytesRead;
+            return;
+        }
+        final long delta = millis - mLastMillis;
+        if (delta > 500) {
+            final long curSpeed = ((mTotalBytesRead - mCurSampleBytes) * 1000) / delta;
+            if (mSpeed == -1) {
+                mSpeed = curSpeed;
+            } else {
+                mSpeed = ((mSpeed * 3) + curSpeed) / 4;
+            }
+
+            mLastMillis = millis;
+            mCurSampleBytes = mTotalBytesRead;
+        }
+    }
+
+    private void calculateEta() {
+        if (mSpeed > 0) {
+            mEta = (mTotalBytes - mTotalBytesRead) / mSpeed;
+        }
+    }
+
+    private void addDuplicateLinks(Response response) {
+        List<DuplicateLink> duplicates = new ArrayList<>();
+
+        for (String field : response.getValues("Link")) {
+            Matcher matcher = DUPLICATE_LINK_PATTERN.matcher(field);
+            if (matcher.matches()) {
+                String url = matcher.group(1);
+                String pri = matcher.group(2);
+                int priority = pri != null ? Integer.parseInt(pri) : DEFAULT_PRIORITY;
+                duplicates.add(new DuplicateLink(url, priority));
+                Log.d(TAG, "Adding duplicate link " + url);
+            } else {
+                Log.d(TAG, "Ignoring link " + field);
+            }
+        }
+        synchronized (this) {
+            Comparator<DuplicateLink> comparator = getLinkComparator();
+            mDuplicateLinks.addAll(duplicates);
+            mDuplicateLinks.sort(comparator);
+            duplicates.sort(comparator);
+            mFallbacks.clear();
+            mFallbacks.addAll(duplicates);
+            probeMirrors();
+        }
+    }
+
+    /**
+     * @return orders duplicate links by how their host performed before, then by
+     * the priority the server gave them
+     */
+    private Comparator<DuplicateLink> getLinkComparator() {
+        Comparator<DuplicateLink> byPriority = Comparator.comparingInt(d -> d.mPriority);
+        if (mScorecard == null) {
+            return byPriority;
+        }
+        Comparator<String> byScore = mScorecard.getComparator();
+        return Comparator.comparing((DuplicateLink d) -> getHost(d.mUrl), byScore)
+                .thenComparing(byPriority);
+    }
+
+    /**
+     * Send a tiny range request to the duplicates on hosts we know nothing about
+     * while the first request goes on, so that how fast they reply can rank them
+     * once the download is set up.
+     */
+    private synchronized void probeMirrors() {
+        if (mScorecard == null || isStopped()) {
+            return;
+        }
+        for (DuplicateLink link : mDuplicateLinks) {
+            String host = getHost(link.mUrl);
+            if (host.isEmpty() || mScorecard.isMeasured(host) || !mProbedHosts.add(host)) {
+                continue;
+            }
+            try {
+                Request request = newRequest(new URL(link.mUrl));
+                setRangeHeaders(request, "bytes=0-0");
+                request.setConnectTimeout(CONNECT_TIMEOUT_MS);
+                mTransport.execute(request, mProbeListener);
+            } catch (MalformedURLException e) {
+                Log.e(TAG, "Not probing " + link.mUrl, e);
+            }
+        }
+    }
+
+    private final Transport.Listener mProbeListener = new Transport.Listener() {
+        @Override
+        public boolean onResponse(Transport.Exchange exchange, Response response) {
+            addLatency(response);
+            return false;
+        }
+
+        @Override
+        public void onData(Transport.Exchange exchange, ByteBuffer buffer) {
+            mBufferPool.release(buffer);
+        }
+
+        @Override
+        public void onComplete(Transport.Exchange exchange) {
+        }
+
+        @Override
+        public void onFailure(Transport.Exchange exchange, IOException e) {
+            Log.d(TAG, "Probe failed", e);
+        }
+    };
+
+    void addLatency(Response response) {
+        if (mScorecard != null && isSuccessCode(response.getCode())) {
+            mScorecard.addLatency(response.getUrl().getHost(), response.getConnectMillis(),
+                    response.getFirstByteMillis());
+        }
+    }
+
+    private void follow(URL url) throws IOException {
+        if (!url.getProtocol().equals(new URL(mUrl).getProtocol())) {
+            // If we hadn't handled duplicate links, we wouldn't have
+            // used this url.
+            throw new IOException("Protocol changes are not allowed");
+        }
+        if (++mRedirects > MAX_REDIRECTS) {
+            throw new IOException("Too many redirects");
+        }
+        Log.d(TAG, "Downloading from " + url);
+        connect(url);
+    }
+
+    /**
+     * Move on to the next duplicate link after the first request failed, or give
+     * up if there's none left.
+     */
+    private void tryFallback(IOException e) {
+        DuplicateLink link;
+        synchronized (this) {
+            // Don't stripe across a mirror that already failed us
+            String failedUrl = mRequestUrl.toString();
+            mDuplicateLinks.removeIf(d -> d.mUrl.equals(failedUrl));
+            link = mFallbacks.poll();
+        }
+        if (link == null) {
+            abort(e);
+            return;
+        }
+        Log.e(TAG, "Using duplicate link " + link.mUrl, e);
+        try {
+            follow(new URL(link.mUrl));
+        } catch (IOException e2) {
+            tryFallback(e2);
+        }
+    }
+
+    boolean isStopped() {
+        return mCancelled || mAborted;
+    }
+
+    synchronized boolean isPaused() {
+        return mPaused;
+    }
+
+    synchronized void setPaused(boolean paused) {
+        if (paused == mPaused) {
+            return;
+        }
+        mPaused = paused;
+        mBufferPool.setPaused(paused);
+        if (!paused) {
+            // Neither the speed nor the mirrors should be judged on the pause
+            mJustResumed = true;
+            for (SegmentWorker worker : mWorkers) {
+                worker.mSampleStart = mClock.elapsedRealtime();
+                worker.mSampleBytes = 0;
+                worker.resetStallWindow();
+            }
+            mRequestStart = mClock.elapsedRealtime();
+        }
+        Log.d(TAG, paused ? "Paused, keeping the connections open" : "Resumed");
+    }
+
+    synchronized void cancel() {
+        mCancelled = true;
+        stopWorkers();
+    }
+
+    synchronized void abort(IOException e) {
+        if (mError == null) {
+            mError = e;
+        }
+        mAborted = true;
+        stopWorkers();
+    }
+
+    private synchronized void stopWorkers() {
+        if (mFirstWorker == null && mExchange != null) {
+            mExchange.cancel();
+        }
+        for (SegmentWorker worker : mWorkers) {
+            if (worker.mExchange != null) {
+                worker.mExchange.cancel();
+            }
+        }
+        mWorkers.clear();
+        endTransfer();
+    }
+
+    /**
+     * Let the writer finish what was read, unless the transfer is still being
+     * set up. Once done, the writer reports the outcome.
+     */
+    synchronized void endTransfer() {
+        if (!mEnded && !mConnecting) {
+            mEnded = true;
+            mWriteQueue.add(mEndOfTransfer);
+        }
+    }
+
+    synchronized void onBytesWritten(int count) {
+        mTotalBytesRead += count;
+        calculateSpeed(mJustResumed);
+        calculateEta();
+        mJustResumed = false; // otherwise we will never get speed and ETA again
+        if (mProgressListener != null) {
+            mProgressListener.update(mTotalBytesRead, mTotalBytes, mSpeed, mEta, false);
+        }
+    }
+
+    /**
+     * Collect every mirror usable for the rest of the session: the one we're
+     * connected to first, then the duplicates from best to worst.
+     */
+    private synchronized void loadMirrors(URL primary) {
+        mMirrors.add(primary);
+        // Probes may have replied meanwhile
+        mDuplicateLinks.sort(getLinkComparator());
+        for (DuplicateLink link : mDuplicateLinks) {
+            try {
+                URL url = new URL(link.mUrl);
+                boolean known = false;
+                for (URL mirror : mMirrors) {
+                    known |= mirror.toString().equals(url.toString());
+                }
+                if (!known && url.getProtocol().equals(primary.getProtocol())) {
+                    mMirrors.add(url);
+                }
+            } catch (MalformedURLException e) {
+                Log.e(TAG, "Ignoring duplicate link " + link.mUrl, e);
+            }
+        }
+        Log.d(TAG, "Mirrors: " + mMirrors);
+    }
+
+    private List<URL> getStripingMirrors() {
+        if (!mUseMirrorStriping) {
+            return mMirrors.subList(0, 1);
+        }
+        return mMirrors.subList(0, Math.min(mMirrors.size(), Math.max(mSegments, 1)));
+    }
+
+    /**
+     * Forget the failures of a mirror that works again, unless it was evicted.
+     */
+    synchronized void clearMirrorFailures(URL url) {
+        mMirrorFailures.computeIfPresent(url.toString(),
+                (mirror, failures) -> failures < MAX_MIRROR_FAILURES ? null : failures);
+    }
+
+    synchronized boolean hasOtherMirror(URL url) {
+        for (URL mirror : mMirrors) {
+            if (!mirror.toString().equals(url.toString()) &&
+                    mMirrorFailures.getOrDefault(mirror.toString(), 0) < MAX_MIRROR_FAILURES) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Pick the mirror to continue from after the given one failed, preferring the
+     * ones that failed the least. Slow mirrors are evicted right away, others after
+     * a few failures in a row. If every mirror was evicted the given one is kept,
+     * the retry budget of the connection decides when to give up. The original
+     * exception is thrown if ranges can't be requested.
+     */
+    synchronized URL failover(URL url, IOException e) throws IOException {
+        if (isStopped() || !mAcceptsRanges) {
+            throw e;
+        }
+        int failures = mMirrorFailures.getOrDefault(url.toString(), 0) + 1;
+        if (e instanceof SlowMirrorException) {
+            failures = MAX_MIRROR_FAILURES;
+        }
+        mMirrorFailures.put(url.toString(), failures);
+        URL next = null;
+        int fewest = MAX_MIRROR_FAILURES;
+        for (URL mirror : mMirrors) {
+            int mirrorFailures = mMirrorFailures.getOrDefault(mirror.toString(), 0);
+            if (mirrorFailures < fewest) {
+                fewest = mirrorFailures;
+                next = mirror;
+            }
+        }
+        if (next == null || next.toString().equals(url.toString())) {
+            return url;
+        }
+        Log.e(TAG, "Switching from " + url + " to " + next, e);
+        return next;
+    }
+
+    /**
+     * Split what's left to download in ranges. Range i is fetched from
+     * mirrors[i % mirrors.size()], its size is weighted by the rank of the mirror.
+     * If the journal has holes, each of them is a range instead.
+     */
+    private void planSegments(Response response, List<URL> mirrors) {
+        long offset = mOffset;
+        long count = mTotalBytes > 0 ? (mTotalBytes - offset) / MIN_SEGMENT_SIZE : 0;
+        count = Math.min(count, mSegments);
+        mAcceptsRanges = isPartialContentCode(response.getCode()) ||
+                "bytes".equalsIgnoreCase(response.get("Accept-Ranges"));
+        List<long[]> missing = mJournal != null ? mJournal.getMissingRanges() : null;
+        if (missing != null && missing.size() > 1 && mAcceptsRanges) {
+            for (long[] range : missing) {
+                Segment segment = new Segment(range[0], range[1]);
+                mSegmentList.add(segment);
+                if (mSegmentList.size() > Math.max(mSegments, 1)) {
+                    mPendingSegments.add(segment);
+                }
+            }
+            Log.d(TAG, "Downloading " + missing.size() + " missing ranges");
+            return;
+        }
+        if (count < 2 || !mAcceptsRanges) {
+            mSegmentList.add(new Segment(offset, mTotalBytes));
+            return;
+        }
+        double totalWeight = 0;
+        for (int i = 0; i < count; i++) {
+            totalWeight += 1.0 / (1 + i % mirrors.size());
+        }
+        long size = mTotalBytes - offset;
+        for (int i = 0; i < count; i++) {
+            double weight = 1.0 / (1 + i % mirrors.size());
+            long end = i == count - 1 ? mTotalBytes : offset + (long) (size * weight / totalWeight);
+            mSegmentList.add(new Segment(offset, end));
+            offset = end;
+        }
+        Log.d(TAG, "Downloading in " + count + " segments from " + mirrors.size() + " mirrors");
+    }
+
+    /**
+     * @param network the network of the connection that will fetch the segment
+     */
+    Segment stealSegment(DownloadNetwork network) {
+        synchronized (mSegmentList) {
+            if (!mPendingSegments.isEmpty()) {
+                return mPendingSegments.remove(0);
+            }
+            Segment largest = null;
+            for (Segment segment : mSegmentList) {
+                if (largest == null ||
+                        segment.getUnreceived() > largest.getUnreceived()) {
+                    largest = segment;
+                }
+            }
+            DownloadNetwork victim = null;
+            for (SegmentWorker worker : mWorkers) {
+                if (worker.mSegment == largest) {
+                    victim = worker.getNetwork();
+                }
+            }
+            Segment segment = largest != null ?
+                    largest.split(getStealShare(network, victim)) : null;
+            if (segment != null) {
+                mSegmentList.add(segment);
+            }
+            return segment;
+        }
+    }
+
+    long getContiguousLength() {
+        List<Segment> segments;
+        synchronized (mSegmentList) {
+            segments = new ArrayList<>(mSegmentList);
+        }
+        Collections.sort(segments, Comparator.comparingLong(segment -> segment.mStart));
+        long length = 0;
+        for (Segment segment : segments) {
+            length = segment.getPosition();
+            if (segment.getRemaining() != 0) {
+                break;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Record in the journal what the segments wrote so far, after making sure it
+     * reached the disk. Unless forced, this is done every JOURNAL_INTERVAL_MS.
+     *
+     * @return whether the journal was saved
+     */
+    boolean checkpoint(FileChannel channel, boolean force) {
+        if (mJournal == null || (!force &&
+                mClock.elapsedRealtime() - mLastCheckpoint < JOURNAL_INTERVAL_MS)) {
+            return false;
+        }
+        synchronized (mJournalLock) {
+            long now = mClock.elapsedRealtime();
+            if (!force && now - mLastCheckpoint < JOURNAL_INTERVAL_MS) {
+                return false;
+            }
+            mLastCheckpoint = now;
+            List<Segment> segments;
+            synchronized (mSegmentList) {
+                segments = new ArrayList<>(mSegmentList);
+            }
+            // Positions are taken before syncing, so they don't cover unsynced data
+            long[] positions = new long[segments.size()];
+            for (int i = 0; i < segments.size(); i++) {
+                positions[i] = segments.get(i).getPosition();
+            }
+            try {
+                channel.force(false);
+            } catch (IOException e) {
+                Log.e(TAG, "Could not sync " + mDestination, e);
+                return false;
+            }
+            for (int i = 0; i < segments.size(); i++) {
+                mJournal.commit(segments.get(i).mStart, positions[i]);
+            }
+            return mJournal.save(mDestination);
+        }
+    }
+
+
+    /**
+     * Reserve the blocks of the whole file, so that it isn't fragmented by the
+     * writes at scattered offsets and we know right away if it can't fit. The
+     * file takes its final length, only the journal tells what was downloaded.
+     */
+    private void preallocate(FileDescriptor fd) throws IOException {
+        if (!mPreallocate || mJournal == null || mTotalBytes <= 0) {
+            return;
+        }
+        try {
+            Os.posix_fallocate(fd, 0, mTotalBytes);
+        } catch (ErrnoException e) {
+            if (e.errno == OsConstants.ENOSPC) {
+                throw new IOException("Not enough space for " + mDestination, e);
+            }
+            // Not supported by every filesystem, the download works anyway
+            Log.w(TAG, "Could not preallocate " + mDestination, e);
+        }
+    }
+
+    /**
+     * Download the file from the start, throwing away what we had.
+     */
+    private void restart() {
+        mResume = false;
+        mOffset = 0;
+        if (mJournal != null) {
+            DownloadJournal.delete(mDestination);
+            mJournal = null;
+        }
+    }
+
+    /**
+     * Check that the journal we resume from matches what the server sent, or
+     * start a new one.
+     *
+     * @return false if the download can't go on
+     */
+    private boolean openJournal(URL url) {
+        if (!mUseJournal) {
+            return true;
+        }
+        if (mJournal != null) {
+            // Servers ignoring If-Range still reply 206 for another file
+            if (mJournal.getSize() != mTotalBytes ||
+                    (mETag != null && mJournal.getETag() != null &&
+                            !mETag.equals(mJournal.getETag()))) {
+                Log.e(TAG, "The file changed on the server, can't resume");
+                DownloadJournal.delete(mDestination);
+                mJournal = null;
+                return false;
+            }
+        } else if (mTotalBytes > 0) {
+            mJournal = new DownloadJournal(mUrl, mTotalBytes);
+            // What's there from an earlier download without journal is contiguous
+            mJournal.commit(0, mOffset);
+        }
+        if (mJournal != null) {
+            mJournal.setMirror(url.toString(), getDuplicates());
+            mJournal.setETag(mETag);
+            mJournal.setLastModified(mLastModified);
+            mJournal.save(mDestination);
+            mLastCheckpoint = mClock.elapsedRealtime();
+        }
+        return true;
+    }
+
+    /**
+     * Check the response to the first request and get the destination ready.
+     */
+    private void setUp(Response response) throws IOException {
+        int responseCode = response.getCode();
+        mCallback.onResponse(responseCode, response.getUrl().toString(), response);
+        addLatency(response);
+
+        if (mResume && isPartialContentCode(responseCode)) {
+            mJustResumed = true;
+            mTotalBytesRead = mJournal != null ? mJournal.getCommittedLength() : mOffset;
+            Log.d(TAG, "The server fulfilled the partial content request");
+        } else if (mResume && isSuccessCode(responseCode) && getIfRange() != null) {
+            // If-Range didn't match, the whole new file is coming. Start over
+            // rather than appending it to what we have.
+            Log.d(TAG, "The file changed on the server, restarting the download");
+            restart();
+        } else if (mResume && responseCode == 416) {
+            throw new ResumeException("The server can't resume " + mDestination);
+        } else if (mResume || !isSuccessCode(responseCode)) {
+            throw new HttpStatusException(responseCode,
+                    "The server replied with code " + responseCode);
+        }
+
+        mETag = response.get("ETag");
+        mLastModified = response.get("Last-Modified");
+        long contentLength = response.getContentLength();
+        mTotalBytes = contentLength >= 0 ? contentLength + mOffset : -1;
+        if (!openJournal(response.getUrl())) {
+            throw new ResumeException("Can't resume " + mDestination);
+        }
+        mFile = new RandomAccessFile(mDestination, "rw");
+        mChannel = mFile.getChannel();
+        if (!mResume) {
+            mChannel.truncate(0);
+        }
+        preallocate(mFile.getFD());
+        loadMirrors(response.getUrl());
+        planSegments(response, getStripingMirrors());
+    }
+
+    @Override
+    public boolean onResponse(Transport.Exchange exchange, Response response) {
+        synchronized (this) {
+            if (exchange != mExchange || isStopped()) {
+                return false;
+            }
+        }
+        int responseCode = response.getCode();
+        if (!isSuccessCode(responseCode) && mFromCache) {
+            connectUncached(new HttpStatusException(responseCode,
+                    "Server replied with " + responseCode));
+            return false;
+        }
+        if (isRedirectCode(responseCode) && response.get("Location") != null) {
+            mCacheTtl = Math.min(mCacheTtl, MirrorCache.getTtl(response));
+            if (mUseDuplicateLinks) {
+                addDuplicateLinks(response);
+            }
+            try {
+                follow(new URL(response.getUrl(), response.get("Location")));
+            } catch (IOException e) {
+                tryFallback(e);
+            }
+            return false;
+        }
+        if (!isSuccessCode(responseCode) && !mFallbacks.isEmpty()) {
+            tryFallback(new HttpStatusException(responseCode,
+                    "Server replied with " + responseCode));
+            return false;
+        }
+
+        synchronized (this) {
+            if (isStopped()) {
+                return false;
+            }
+            mConnecting = true;
+        }
+        IOException error = null;
+        try {
+            setUp(response);
+        } catch (IOException e) {
+            error = e;
+        }
+        synchronized (this) {
+            mConnecting = false;
+            if (error != null) {
+                abort(error);
+                return false;
+            } else if (isStopped()) {
+                endTransfer();
+                return false;
+            }
+            if (mRedirects > 0 && !mFromCache) {
+                cacheRedirects(response.getUrl());
+            }
+            mWriteQueue.add(mStartOfTransfer);
+            List<URL> mirrors = getStripingMirrors();
+            synchronized (mSegmentList) {
+                mFirstWorker = new SegmentWorker(this, response.getUrl(), mSegmentList.get(0), exchange);
+                mWorkers.add(mFirstWorker);
+                for (int i = 1; i < mSegmentList.size() - mPendingSegments.size(); i++) {
+                    SegmentWorker worker = new SegmentWorker(this, mirrors.get(i % mirrors.size()),
+                            mSegmentList.get(i), null);
+                    mWorkers.add(worker);
+                    worker.fetch();
+                }
+            }
+            updateBonding();
+            return true;
+        }
+    }
+
+    @Override
+    public void onData(Transport.Exchange exchange, ByteBuffer buffer) {
+        mFirstWorker.onData(exchange, buffer);
+    }
+
+    @Override
+    public void onComplete(Transport.Exchange exchange) {
+        mFirstWorker.onComplete(exchange);
+    }
+
+    @Override
+    public void onFailure(Transport.Exchange exchange, IOException e) {
+        SegmentWorker worker;
+        synchronized (this) {
+            if (exchange != mExchange || isStopped()) {
+                return;
+            }
+            worker = mFirstWorker;
+            if (worker == null && mFromCache) {
+                connectUncached(e);
+                return;
+            } else if (worker == null && mFallbacks.isEmpty()) {
+                reconnect(e);
+                return;
+            }
+        }
+        if (worker != null) {
+            worker.onFailure(exchange, e);
+        } else {
+            tryFallback(e);
+        }
+    }
+
+    /**
+     * Send the first request again after a while, following the redirects from
+     * the start, or give up once out of retries.
+     */
+    private synchronized void reconnect(IOException e) {
+        mExchange = null;
+        if (isNetworkLost(mNetwork)) {
+            Log.d(TAG, "Network lost while connecting", e);
+            mRetryAt = mClock.elapsedRealtime() + getRetryDelay(mRetries);
+            return;
+        }
+        if (++mRetries > MAX_RETRIES || isPermanentError(e)) {
+            abort(e);
+            return;
+        }
+        long delay = getRetryDelay(mRetries);
+        Log.e(TAG, "Reconnecting in " + delay + " ms", e);
+        mRetryAt = mClock.elapsedRealtime() + delay;
+    }
+
+    /**
+     * Called every WATCHDOG_INTERVAL_MS with the session lock held. Connections
+     * aren't judged while the download is paused or the writer is behind, they
+     * aren't reading then.
+     */
+    void checkConnections() {
+        long now = mClock.elapsedRealtime();
+        boolean heldBack = mPaused || mBufferPool.isExhausted() || isWaitingForNetwork();
+        if (!heldBack && now - mLastRateSample >= NETWORK_RATE_INTERVAL_MS) {
+            for (NetworkUsage usage : mNetworkUsage.values()) {
+                usage.addRateSample(now - mLastRateSample);
+            }
+            mLastRateSample = now;
+        } else if (heldBack) {
+            mLastRateSample = now;
+        }
+        if (isWaitingForNetwork() && mNetworkSource.getDefaultNetwork() != null) {
+            // A new billing window may have started
+            onNetworksChanged();
+        }
+        if (mFirstWorker == null && !mConnecting) {
+            if (mRetryAt > 0 && now >= mRetryAt && !isWaitingForNetwork()) {
+                mRetryAt = 0;
+                mRedirects = 0;
+                try {
+                    connect(new URL(mUrl));
+                } catch (MalformedURLException e) {
+                    abort(e);
+                }
+            } else if (heldBack) {
+                mRequestStart = now;
+            } else if (mExchange != null && now - mRequestStart >= STALL_WINDOW_MS) {
+                IOException e = new SocketTimeoutException(
+                        mRequestUrl.getHost() + " didn't respond");
+                mExchange.cancel();
+                if (mFromCache) {
+                    connectUncached(e);
+                } else if (mFallbacks.isEmpty()) {
+                    reconnect(e);
+                } else {
+                    tryFallback(e);
+                }
+            }
+            return;
+        }
+        for (SegmentWorker worker : new ArrayList<>(mWorkers)) {
+            if (heldBack) {
+                worker.resetStallWindow();
+            } else {
+                worker.check(now);
+            }
+        }
+    }
+
+    /**
+     * Report the outcome, once everything read was written.
+     */
+    void finish(IOException writeError) {
+        if (mChannel != null) {
+            try {
+                mFile.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Could not close " + mDestination, e);
+            }
+        }
+        if (mTransport != null) {
+            mTransport.shutdown();
+        }
+        if (mScorecard != null) {
+            mScorecard.save();
+        }
+        if (mNetworkSource != null) {
+            mNetworkSource.stop(mNetworkListener);
+            if (mUseNetworkBonding) {
+                Log.d(TAG, "Network usage: " + mNetworkUsage);
+            }
+        }
+        if (mDataBudget != null) {
+            Log.d(TAG, "Data budget: " + mDataBudget);
+            mDataBudget.save();
+        }
+        Log.d(TAG, "Connection metrics: " + ConnectionMetrics.describe());
+        IOException error;
+        boolean cancelled;
+        synchronized (this) {
+            error = mError != null ? mError : writeError;
+            cancelled = mCancelled;
+        }
+        mClient.onSessionEnded(this);
+        if (error != null) {
+            Log.e(TAG, "Error downloading file", error);
+            mCallback.onFailure(cancelled, error);
+            return;
+        }
+        if (cancelled) {
+            mCallback.onFailure(true);
+            return;
+        }
+        if (mProgressListener != null) {
+            mProgressListener.update(mTotalBytesRead, mTotalBytes, mSpeed, mEta, true);
+        }
+        DownloadJournal.delete(mDestination);
+        mCallback.onSuccess(mDestination);
+    }
+
+    private static class DuplicateLink {
+        private final String mUrl;
+        private final int mPriority;
+
+        private DuplicateLink(String url, int priority) {
+            mUrl = url;
+            mPriority = priority;
+        }
+    }
+
+    /**
+     * What was received over a network during a session, and how fast.
+     */
+    static final class NetworkUsage {
+        long mBytes;
+        private long mSampleBytes;
+        private long mRate;
+
+        private void addRateSample(long millis) {
+            long rate = (mBytes - mSampleBytes) * 1000 / millis;
+            mSampleBytes = mBytes;
+            mRate = mRate == 0 ? rate : (long) (rate * NETWORK_RATE_WEIGHT +
+                    mRate * (1 - NETWORK_RATE_WEIGHT));
+        }
+
+        @Override
+        public String toString() {
+            return mBytes + " bytes at " + mRate + " B/s";
+        }
+    }
+}
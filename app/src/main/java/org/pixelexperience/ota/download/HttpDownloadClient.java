@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ * Copyright (C) 2019 The PixelExperience Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixelexperience.ota.download;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+
+public class HttpDownloadClient implements DownloadClient {
+
+    private final static String TAG = "HttpDownloadClient";
+    final String mUrl;
+    final File mDestination;
+    final DownloadClient.ProgressListener mProgressListener;
+    final DownloadClient.ContentListener mContentListener;
+    final DownloadClient.DownloadCallback mCallback;
+    final boolean mUseDuplicateLinks;
+    final int mSegments;
+    final boolean mUseMirrorStriping;
+    final boolean mUseJournal;
+    final boolean mPreallocate;
+    final boolean mUseNonBlockingIo;
+    final File mScorecardFile;
+    final NetworkSource mNetworkSource;
+    final boolean mUseNetworkBonding;
+    final long mMeteredNetworkCap;
+    final File mDataBudgetFile;
+    final long mMeteredDataBudget;
+    final int mBillingDay;
+    final Clock mClock;
+    // Shared by the sessions, so that the limit holds across resumes
+    final RateLimiter mRateLimiter;
+    private long mForegroundRateLimit;
+    private long mBackgroundRateLimit;
+    private boolean mForeground = true;
+    private DownloadSession mSession;
+
+    HttpDownloadClient(DownloadClient.Builder builder) throws IOException {
+        // Fail right away on invalid URLs
+        new URL(builder.mUrl);
+        mUrl = builder.mUrl;
+        mDestination = builder.mDestination;
+        mProgressListener = builder.mProgressListener;
+        mContentListener = builder.mContentListener;
+        mCallback = builder.mCallback;
+        mUseDuplicateLinks = builder.mUseDuplicateLinks;
+        mSegments = builder.mSegments;
+        mUseMirrorStriping = builder.mUseMirrorStriping;
+        mUseJournal = builder.mUseJournal;
+        mPreallocate = builder.mPreallocate;
+        mUseNonBlockingIo = builder.mUseNonBlockingIo;
+        mScorecardFile = builder.mScorecardFile;
+        mNetworkSource = builder.mNetworkSource;
+        mUseNetworkBonding = builder.mUseNetworkBonding;
+        mMeteredNetworkCap = builder.mMeteredNetworkCap;
+        mDataBudgetFile = builder.mDataBudgetFile;
+        mMeteredDataBudget = builder.mMeteredDataBudget;
+        mBillingDay = builder.mBillingDay;
+        mClock = builder.mClock;
+        mRateLimiter = new RateLimiter(mClock);
+        setRateLimits(builder.mForegroundRateLimit, builder.mBackgroundRateLimit);
+    }
+
+    @Override
+    public synchronized void start() {
+        if (mSession != null) {
+            Log.e(TAG, "Already downloading");
+            return;
+        }
+        downloadFileInternalCommon(false, null, 0, null, null);
+    }
+
+    @Override
+    public synchronized void resume() {
+        if (mSession != null && mSession.isPaused()) {
+            mSession.setPaused(false);
+            return;
+        }
+        if (mSession != null) {
+            Log.e(TAG, "Already downloading");
+            return;
+        }
+        downloadFileResumeInternal();
+    }
+
+    @Override
+    public synchronized void pause() {
+        if (mSession == null) {
+            Log.e(TAG, "Not downloading");
+            return;
+        }
+        mSession.setPaused(true);
+    }
+
+    @Override
+    public synchronized void cancel() {
+        if (mSession == null) {
+            Log.e(TAG, "Not downloading");
+            return;
+        }
+        mSession.cancel();
+        mSession = null;
+    }
+
+    @Override
+    public synchronized void setForeground(boolean foreground) {
+        mForeground = foreground;
+        updateRateLimit();
+    }
+
+    @Override
+    public synchronized void setRateLimits(long foregroundBytesPerSecond,
+                                           long backgroundBytesPerSecond) {
+        mForegroundRateLimit = foregroundBytesPerSecond;
+        mBackgroundRateLimit = backgroundBytesPerSecond;
+        updateRateLimit();
+    }
+
+    /**
+     * Called by the session before it reports its outcome. Resuming after that
+     * starts a new session from what is on disk.
+     */
+    synchronized void onSessionEnded(DownloadSession session) {
+        if (mSession == session) {
+            mSession = null;
+        }
+    }
+
+    private void updateRateLimit() {
+        long rate = mForeground ? mForegroundRateLimit : mBackgroundRateLimit;
+        if (rate != mRateLimiter.getRate()) {
+            Log.d(TAG, "Rate limit: " + (rate > 0 ? rate + " B/s" : "none") +
+                    (mForeground ? " in the foreground" : " in the background"));
+            mRateLimiter.setRate(rate);
+        }
+    }
+
+    private void downloadFileResumeInternal() {
+        if (!mDestination.exists()) {
+            mCallback.onFailure(false);
+            return;
+        }
+        long offset = mDestination.length();
+        DownloadJournal journal = null;
+        if (mUseJournal) {
+            // The file can have holes if the process died, only the journal knows
+            journal = DownloadJournal.load(mDestination);
+            if (journal != null && !journal.getUrl().equals(mUrl)) {
+                Log.d(TAG, "Ignoring journal of another download");
+                journal = null;
+            }
+            if (journal != null && journal.isComplete()) {
+                DownloadJournal.delete(mDestination);
+                mCallback.onSuccess(mDestination);
+                return;
+            }
+            if (journal != null) {
+                offset = journal.getFirstMissing();
+            }
+        }
+        downloadFileInternalCommon(true, journal, offset,
+                journal != null ? journal.getETag() : null,
+                journal != null ? journal.getLastModified() : null);
+    }
+
+    private void downloadFileInternalCommon(boolean resume, DownloadJournal journal,
+                                            long offset, String eTag, String lastModified) {
+        if (mSession != null) {
+            Log.wtf(TAG, "Already downloading");
+            return;
+        }
+
+        mSession = new DownloadSession(this, resume, journal, offset, eTag, lastModified);
+        mSession.start();
+    }
+}
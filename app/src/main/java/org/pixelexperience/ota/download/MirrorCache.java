@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2023 The PixelExperience Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixelexperience.ota.download;
+
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers where the redirects of a download URL led and the duplicate links
+ * that came with them, so that resuming the download doesn't go through the
+ * redirector again. Entries expire as told by the cache headers of the redirects
+ * and only live as long as the process.
+ */
+final class MirrorCache {
+
+    // Used when the redirects don't tell how long they can be cached
+    static final long DEFAULT_TTL_MS = 5 * 60 * 1000;
+
+    private static final Map<String, Entry> sEntries = new HashMap<>();
+
+    private MirrorCache() {
+    }
+
+    static final class Entry {
+        private final String mTarget;
+        // Duplicate links by priority
+        private final LinkedHashMap<String, Integer> mDuplicates;
+        private final long mExpiry;
+
+        private Entry(String target, LinkedHashMap<String, Integer> duplicates, long expiry) {
+            mTarget = target;
+            mDuplicates = duplicates;
+            mExpiry = expiry;
+        }
+
+        String getTarget() {
+            return mTarget;
+        }
+
+        Map<String, Integer> getDuplicates() {
+            return mDuplicates;
+        }
+    }
+
+    /**
+     * @return the entry of the given URL, or null if there's none or it expired
+     */
+    static synchronized Entry get(String url) {
+        Entry entry = sEntries.get(url);
+        if (entry != null && SystemClock.elapsedRealtime() >= entry.mExpiry) {
+            sEntries.remove(url);
+            entry = null;
+        }
+        return entry;
+    }
+
+    /**
+     * @param ttl how long the entry stays valid, nothing is cached if not positive
+     */
+    static synchronized void put(String url, String target,
+                                 LinkedHashMap<String, Integer> duplicates, long ttl) {
+        if (ttl <= 0) {
+            sEntries.remove(url);
+            return;
+        }
+        sEntries.put(url, new Entry(target, duplicates, SystemClock.elapsedRealtime() + ttl));
+    }
+
+    static synchronized void remove(String url) {
+        sEntries.remove(url);
+    }
+
+    /**
+     * @return how long the given response can be cached according to its
+     * Cache-Control header, DEFAULT_TTL_MS if it doesn't say
+     */
+    static long getTtl(Response response) {
+        String cacheControl = response.get("Cache-Control");
+        if (cacheControl == null) {
+            return DEFAULT_TTL_MS;
+        }
+        long ttl = DEFAULT_TTL_MS;
+        for (String directive : cacheControl.split(",")) {
+            directive = directive.trim().toLowerCase();
+            if (directive.equals("no-store") || directive.equals("no-cache")) {
+                return 0;
+            } else if (directive.startsWith("max-age=")) {
+                try {
+                    ttl = Long.parseLong(directive.substring(8).replace("\"", "")) * 1000;
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return ttl;
+    }
+}
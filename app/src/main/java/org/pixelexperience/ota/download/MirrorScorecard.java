@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2023 The PixelExperience Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixelexperience.ota.download;
+
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * How well each mirror host performed on this device, measured from real
+ * transfers: how long connecting and the first reply took and how fast the body
+ * came. Older measurements weigh less in the averages and are eventually dropped,
+ * networks and mirrors change.
+ */
+final class MirrorScorecard {
+
+    private static final String TAG = "MirrorScorecard";
+
+    private static final int VERSION = 1;
+
+    // A new measurement weighs this much against fresh earlier ones. Earlier ones
+    // lose half their weight every HALF_LIFE_MS and are dropped after MAX_AGE_MS.
+    private static final double SAMPLE_WEIGHT = 0.3;
+    private static final long HALF_LIFE_MS = 3L * 24 * 60 * 60 * 1000;
+    private static final long MAX_AGE_MS = 30L * 24 * 60 * 60 * 1000;
+
+    private final AtomicFile mFile;
+    private final Map<String, Score> mScores = new HashMap<>();
+    private boolean mDirty = false;
+
+    private static final class Score {
+        private double mConnectMillis = -1;
+        private double mFirstByteMillis = -1;
+        private double mThroughput = -1;
+        // Wall clock time of the last measurement
+        private long mUpdated;
+    }
+
+    private MirrorScorecard(File file) {
+        mFile = new AtomicFile(file);
+    }
+
+    /**
+     * @return the scorecard kept in the given file, empty if there's none or it
+     * can't be read
+     */
+    static MirrorScorecard load(File file) {
+        MirrorScorecard scorecard = new MirrorScorecard(file);
+        if (!file.exists()) {
+            return scorecard;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(scorecard.mFile.readFully()))) {
+            if (in.readInt() != VERSION) {
+                throw new IOException("Unknown scorecard version");
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String host = in.readUTF();
+                Score score = new Score();
+                score.mConnectMillis = in.readDouble();
+                score.mFirstByteMillis = in.readDouble();
+                score.mThroughput = in.readDouble();
+                score.mUpdated = in.readLong();
+                scorecard.mScores.put(host, score);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read " + file, e);
+            scorecard.mScores.clear();
+        }
+        return scorecard;
+    }
+
+    /**
+     * Write the scorecard if anything was measured since it was loaded.
+     */
+    synchronized void save() {
+        if (!mDirty) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        Iterator<Score> scores = mScores.values().iterator();
+        while (scores.hasNext()) {
+            if (now - scores.next().mUpdated > MAX_AGE_MS) {
+                scores.remove();
+            }
+        }
+        FileOutputStream fos = null;
+        try {
+            fos = mFile.startWrite();
+            DataOutputStream out = new DataOutputStream(fos);
+            out.writeInt(VERSION);
+            out.writeInt(mScores.size());
+            for (Map.Entry<String, Score> entry : mScores.entrySet()) {
+                Score score = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeDouble(score.mConnectMillis);
+                out.writeDouble(score.mFirstByteMillis);
+                out.writeDouble(score.mThroughput);
+                out.writeLong(score.mUpdated);
+            }
+            out.flush();
+            mFile.finishWrite(fos);
+            mDirty = false;
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write " + mFile.getBaseFile(), e);
+            if (fos != null) {
+                mFile.failWrite(fos);
+            }
+        }
+    }
+
+    /**
+     * @return how much earlier measurements weigh against a new one
+     */
+    private static double getWeight(Score score, long now) {
+        double age = Math.max(0, now - score.mUpdated);
+        return (1 - SAMPLE_WEIGHT) * Math.pow(0.5, age / HALF_LIFE_MS);
+    }
+
+    private static double average(double value, double sample, double weight) {
+        if (value < 0) {
+            return sample;
+        }
+        return (value * weight + sample * SAMPLE_WEIGHT) / (weight + SAMPLE_WEIGHT);
+    }
+
+    private Score getScore(String host) {
+        Score score = mScores.get(host);
+        if (score == null) {
+            score = new Score();
+            mScores.put(host, score);
+        }
+        return score;
+    }
+
+    synchronized void addLatency(String host, long connectMillis, long firstByteMillis) {
+        long now = System.currentTimeMillis();
+        Score score = getScore(host);
+        double weight = getWeight(score, now);
+        score.mConnectMillis = average(score.mConnectMillis, connectMillis, weight);
+        score.mFirstByteMillis = average(score.mFirstByteMillis, firstByteMillis, weight);
+        score.mUpdated = now;
+        mDirty = true;
+    }
+
+    synchronized void addThroughput(String host, long bytesPerSecond) {
+        long now = System.currentTimeMillis();
+        Score score = getScore(host);
+        score.mThroughput = average(score.mThroughput, bytesPerSecond,
+                getWeight(score, now));
+        score.mUpdated = now;
+        mDirty = true;
+    }
+
+    synchronized boolean isMeasured(String host) {
+        return mScores.containsKey(host);
+    }
+
+    /**
+     * @return orders hosts by expected throughput, then by how fast they reply for
+     * the ones that only have latency measurements. Unmeasured hosts come last
+     * and are considered equal.
+     */
+    synchronized Comparator<String> getComparator() {
+        Map<String, double[]> keys = new HashMap<>();
+        for (Map.Entry<String, Score> entry : mScores.entrySet()) {
+            Score score = entry.getValue();
+            keys.put(entry.getKey(), new double[]{score.mThroughput,
+                    score.mConnectMillis + score.mFirstByteMillis});
+        }
+        return (a, b) -> {
+            double[] keyA = keys.get(a);
+            double[] keyB = keys.get(b);
+            if (keyA == null || keyB == null) {
+                return keyA != null ? -1 : keyB != null ? 1 : 0;
+            }
+            if (keyA[0] >= 0 || keyB[0] >= 0) {
+                return Double.compare(keyB[0], keyA[0]);
+            }
+            return Double.compare(keyA[1], keyB[1]);
+        };
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2023 The PixelExperience Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixelexperience.ota.download;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * The networks ConnectivityManager reports as validated. The default one is what
+ * the system picks, the others can be used alongside it. Metered networks only
+ * count if allowed.
+ */
+final class NetworkMonitor implements NetworkSource {
+
+    private static final String TAG = "NetworkMonitor";
+
+    private final ConnectivityManager mConnectivityManager;
+    private final boolean mAllowMetered;
+    private final List<Listener> mListeners = new ArrayList<>();
+    private SystemNetwork mDefaultNetwork;
+    private final Map<Network, SystemNetwork> mNetworks = new LinkedHashMap<>();
+
+    private final ConnectivityManager.NetworkCallback mDefaultCallback =
+            new ConnectivityManager.NetworkCallback() {
+                @Override
+                public void onCapabilitiesChanged(Network network,
+                                                  NetworkCapabilities capabilities) {
+                    setDefaultNetwork(isUsable(capabilities) ?
+                            new SystemNetwork(network, capabilities) : null);
+                }
+
+                @Override
+                public void onLost(Network network) {
+                    synchronized (NetworkMonitor.this) {
+                        if (mDefaultNetwork == null ||
+                                !network.equals(mDefaultNetwork.mNetwork)) {
+                            return;
+                        }
+                    }
+                    setDefaultNetwork(null);
+                }
+            };
+
+    private final ConnectivityManager.NetworkCallback mCallback =
+            new ConnectivityManager.NetworkCallback() {
+                @Override
+                public void onCapabilitiesChanged(Network network,
+                                                  NetworkCapabilities capabilities) {
+                    updateNetwork(network, capabilities);
+                }
+
+                @Override
+                public void onLost(Network network) {
+                    updateNetwork(network, null);
+                }
+            };
+
+    NetworkMonitor(Context context, boolean allowMetered) {
+        mConnectivityManager = context.getSystemService(ConnectivityManager.class);
+        mAllowMetered = allowMetered;
+    }
+
+    private static boolean isMetered(NetworkCapabilities capabilities) {
+        return !capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_METERED);
+    }
+
+    private boolean isUsable(NetworkCapabilities capabilities) {
+        return capabilities != null &&
+                capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET) &&
+                capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_VALIDATED) &&
+                (mAllowMetered || !isMetered(capabilities));
+    }
+
+    @Override
+    public void start(Listener listener) {
+        Network network = mConnectivityManager.getActiveNetwork();
+        NetworkCapabilities capabilities = mConnectivityManager.getNetworkCapabilities(network);
+        synchronized (this) {
+            mListeners.add(listener);
+            if (mListeners.size() > 1) {
+                return;
+            }
+            mDefaultNetwork = isUsable(capabilities) ?
+                    new SystemNetwork(network, capabilities) : null;
+            mNetworks.clear();
+        }
+        mConnectivityManager.registerDefaultNetworkCallback(mDefaultCallback);
+        mConnectivityManager.registerNetworkCallback(new NetworkRequest.Builder()
+                .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                .build(), mCallback);
+    }
+
+    @Override
+    public void stop(Listener listener) {
+        synchronized (this) {
+            if (!mListeners.remove(listener) || !mListeners.isEmpty()) {
+                return;
+            }
+        }
+        try {
+            mConnectivityManager.unregisterNetworkCallback(mDefaultCallback);
+            mConnectivityManager.unregisterNetworkCallback(mCallback);
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "Network callback wasn't registered", e);
+        }
+    }
+
+    @Override
+    public synchronized DownloadNetwork getDefaultNetwork() {
+        return mDefaultNetwork;
+    }
+
+    @Override
+    public synchronized List<DownloadNetwork> getNetworks() {
+        List<DownloadNetwork> networks = new ArrayList<>();
+        if (mDefaultNetwork != null) {
+            networks.add(mDefaultNetwork);
+        }
+        for (SystemNetwork network : mNetworks.values()) {
+            if (!network.equals(mDefaultNetwork)) {
+                networks.add(network);
+            }
+        }
+        return networks;
+    }
+
+    @Override
+    public boolean isLost(DownloadNetwork network) {
+        return !isUsable(mConnectivityManager.getNetworkCapabilities(
+                ((SystemNetwork) network).mNetwork));
+    }
+
+    private void setDefaultNetwork(SystemNetwork network) {
+        synchronized (this) {
+            if (Objects.equals(network, mDefaultNetwork) || mListeners.isEmpty()) {
+                return;
+            }
+            mDefaultNetwork = network;
+        }
+        notifyListeners();
+    }
+
+    private void updateNetwork(Network network, NetworkCapabilities capabilities) {
+        synchronized (this) {
+            if (mListeners.isEmpty()) {
+                return;
+            }
+            boolean changed;
+            if (isUsable(capabilities)) {
+                changed = mNetworks.put(network,
+                        new SystemNetwork(network, capabilities)) == null;
+            } else {
+                changed = mNetworks.remove(network) != null;
+            }
+            if (!changed) {
+                return;
+            }
+        }
+        notifyListeners();
+    }
+
+    private void notifyListeners() {
+        List<Listener> listeners;
+        synchronized (this) {
+            listeners = new ArrayList<>(mListeners);
+        }
+        for (Listener listener : listeners) {
+            listener.onNetworksChanged();
+        }
+    }
+
+    private static final class SystemNetwork implements DownloadNetwork {
+
+        private final Network mNetwork;
+        private final boolean mMetered;
+        private final String mType;
+
+        private SystemNetwork(Network network, NetworkCapabilities capabilities) {
+            mNetwork = network;
+            mMetered = NetworkMonitor.isMetered(capabilities);
+            if (capabilities.hasTransport(NetworkCapabilities.TRANSPORT_WIFI)) {
+                mType = "wifi";
+            } else if (capabilities.hasTransport(NetworkCapabilities.TRANSPORT_CELLULAR)) {
+                mType = "cellular";
+            } else if (capabilities.hasTransport(NetworkCapabilities.TRANSPORT_ETHERNET)) {
+                mType = "ethernet";
+            } else {
+                mType = "other";
+            }
+        }
+
+        @Override
+        public boolean isMetered() {
+            return mMetered;
+        }
+
+        @Override
+        public String getType() {
+            return mType;
+        }
+
+        @Override
+        public URLConnection openConnection(URL url) throws IOException {
+            return mNetwork.openConnection(url);
+        }
+
+        @Override
+        public InetAddress[] getAllByName(String host) throws UnknownHostException {
+            return mNetwork.getAllByName(host);
+        }
+
+        @Override
+        public void bindSocket(Socket socket) throws IOException {
+            mNetwork.bindSocket(socket);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof SystemNetwork && mNetwork.equals(((SystemNetwork) o).mNetwork);
+        }
+
+        @Override
+        public int hashCode() {
+            return mNetwork.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return mNetwork.toString();
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2023 The PixelExperience Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixelexperience.ota.download;
+
+import java.util.List;
+
+/**
+ * The networks downloads can use. On devices these are the ones ConnectivityManager
+ * reports, other sources can stand in for them.
+ */
+public interface NetworkSource {
+
+    /**
+     * Start reporting changes to the listener, from any thread. Each started
+     * listener is stopped once done.
+     */
+    void start(Listener listener);
+
+    void stop(Listener listener);
+
+    /**
+     * @return the network to use by default, or null if there's none
+     */
+    DownloadNetwork getDefaultNetwork();
+
+    /**
+     * @return every network that can be used, the default one included
+     */
+    List<DownloadNetwork> getNetworks();
+
+    /**
+     * @return whether the network can't be used anymore, even if the listeners
+     * weren't told yet
+     */
+    boolean isLost(DownloadNetwork network);
+
+    interface Listener {
+        void onNetworksChanged();
+    }
+}
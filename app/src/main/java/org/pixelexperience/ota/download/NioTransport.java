@@ -0,0 +1,1057 @@
+/*
+ * Copyright (C) 2023 The PixelExperience Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixelexperience.ota.download;
+
+import android.net.InetAddresses;
+import android.util.Log;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+
+/**
+ * Transport using non-blocking sockets, all served by a single selector thread.
+ * Bodies are read straight into the buffers of the pool, decrypting them there
+ * when the connection is secure. Connections stop reading while the pool is
+ * empty. Only host lookups, which can't be done without blocking, run on other
+ * threads.
+ */
+class NioTransport implements Transport {
+
+    private static final String TAG = "NioTransport";
+
+    // Chunks passed to the listener hold about CHUNK_DURATION_MS of the throughput
+    // of the connection
+    private static final int MIN_CHUNK_SIZE = 16 * 1024;
+    private static final long CHUNK_DURATION_MS = 50;
+    // Status line and headers must fit in this
+    private static final int MAX_HEADER_SIZE = 32 * 1024;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    // Connecting to the next address of a host starts this long after the previous
+    // attempt unless that one failed, the attempts then race
+    private static final long CONNECTION_ATTEMPT_DELAY_MS = 250;
+
+    // Whether IPv6 won the last race to each host
+    private static final Map<String, Boolean> sPreferIpv6 = new ConcurrentHashMap<>();
+
+    private final BufferPool mBufferPool;
+    private final RateLimiter mRateLimiter;
+    private final Clock mClock;
+    private final Selector mSelector;
+    private final Queue<Runnable> mTasks = new ConcurrentLinkedQueue<>();
+    private final ExecutorService mResolver = Executors.newCachedThreadPool();
+    // Only accessed from the selector thread
+    private final List<Connection> mConnections = new ArrayList<>();
+    private final List<Connection> mWaitingForBuffers = new ArrayList<>();
+    private final List<Connection> mRateLimited = new ArrayList<>();
+    // When the rate limit lets the connections in mRateLimited read again
+    private long mRateLimitedUntil = 0;
+    private volatile boolean mShutdown = false;
+
+    NioTransport(BufferPool bufferPool, RateLimiter rateLimiter, Clock clock)
+            throws IOException {
+        mBufferPool = bufferPool;
+        mRateLimiter = rateLimiter;
+        mClock = clock;
+        mSelector = Selector.open();
+        mBufferPool.setAvailableListener(() -> post(this::resumeWaiting));
+        mRateLimiter.setRateListener(() -> post(this::resumeRateLimited));
+        new Thread(this::loop, TAG).start();
+    }
+
+    @Override
+    public Exchange execute(Request request, Listener listener) {
+        Connection connection = new Connection(request, listener);
+        post(connection::resolve);
+        return connection;
+    }
+
+    @Override
+    public void shutdown() {
+        mShutdown = true;
+        mSelector.wakeup();
+    }
+
+    private void post(Runnable task) {
+        mTasks.add(task);
+        mSelector.wakeup();
+    }
+
+    private void loop() {
+        try {
+            while (!mShutdown) {
+                mSelector.select(getSelectTimeout());
+                Runnable task;
+                while ((task = mTasks.poll()) != null && !mShutdown) {
+                    task.run();
+                }
+                Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+                while (keys.hasNext() && !mShutdown) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid()) {
+                        ((Selectable) key.attachment()).onReady(key.readyOps());
+                    }
+                }
+                checkTimeouts();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Selector failed", e);
+            for (Connection connection : new ArrayList<>(mConnections)) {
+                connection.fail(e);
+            }
+        } finally {
+            for (Connection connection : new ArrayList<>(mConnections)) {
+                connection.close();
+            }
+            try {
+                mSelector.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Could not close selector", e);
+            }
+            mResolver.shutdownNow();
+        }
+    }
+
+    private long getSelectTimeout() {
+        long now = mClock.elapsedRealtime();
+        long timeout = 0;
+        for (Connection connection : mConnections) {
+            for (long time : new long[]{connection.mDeadline, connection.mNextAttemptTime}) {
+                if (time > 0) {
+                    long left = Math.max(time - now, 1);
+                    timeout = timeout == 0 ? left : Math.min(timeout, left);
+                }
+            }
+        }
+        if (mRateLimitedUntil > 0) {
+            long left = Math.max(mRateLimitedUntil - now, 1);
+            timeout = timeout == 0 ? left : Math.min(timeout, left);
+        }
+        return timeout;
+    }
+
+    private void checkTimeouts() {
+        long now = mClock.elapsedRealtime();
+        for (Connection connection : new ArrayList<>(mConnections)) {
+            if (connection.mDeadline > 0 && now >= connection.mDeadline) {
+                connection.fail(new SocketTimeoutException("Connect timed out"));
+            } else if (connection.mNextAttemptTime > 0 && now >= connection.mNextAttemptTime) {
+                connection.startAttempt();
+            }
+        }
+        if (mRateLimitedUntil > 0 && now >= mRateLimitedUntil) {
+            resumeRateLimited();
+        }
+    }
+
+    /**
+     * Interleave the address families, starting with the one that won the last
+     * race to the host or else the one the resolver put first, as in RFC 8305.
+     */
+    private static InetAddress[] sortAddresses(String host, InetAddress[] addresses) {
+        List<InetAddress> ipv6 = new ArrayList<>();
+        List<InetAddress> ipv4 = new ArrayList<>();
+        for (InetAddress address : addresses) {
+            (address instanceof Inet6Address ? ipv6 : ipv4).add(address);
+        }
+        Boolean preferIpv6 = sPreferIpv6.get(host);
+        if (preferIpv6 == null) {
+            preferIpv6 = addresses.length > 0 && addresses[0] instanceof Inet6Address;
+        }
+        List<InetAddress> first = preferIpv6 ? ipv6 : ipv4;
+        List<InetAddress> second = preferIpv6 ? ipv4 : ipv6;
+        InetAddress[] sorted = new InetAddress[addresses.length];
+        int count = 0;
+        for (int i = 0; i < Math.max(first.size(), second.size()); i++) {
+            if (i < first.size()) {
+                sorted[count++] = first.get(i);
+            }
+            if (i < second.size()) {
+                sorted[count++] = second.get(i);
+            }
+        }
+        return sorted;
+    }
+
+    private void resumeWaiting() {
+        List<Connection> waiting = new ArrayList<>(mWaitingForBuffers);
+        mWaitingForBuffers.clear();
+        for (Connection connection : waiting) {
+            connection.resumeReading();
+        }
+    }
+
+    private void resumeRateLimited() {
+        List<Connection> limited = new ArrayList<>(mRateLimited);
+        mRateLimited.clear();
+        mRateLimitedUntil = 0;
+        for (Connection connection : limited) {
+            connection.resumeReading();
+        }
+    }
+
+    private enum State {
+        RESOLVING,
+        CONNECTING,
+        HANDSHAKING,
+        SENDING,
+        READING_HEADERS,
+        READING_BODY,
+        CLOSED
+    }
+
+    private enum ChunkState {
+        SIZE,
+        DATA,
+        DATA_END,
+        TRAILER
+    }
+
+    private interface Selectable {
+        void onReady(int readyOps);
+    }
+
+    private class Connection implements Exchange, Selectable {
+
+        private final Request mRequest;
+        private final Listener mListener;
+        private final URL mUrl;
+        private final boolean mSecure;
+        private volatile boolean mCancelled = false;
+
+        private State mState = State.RESOLVING;
+        private long mDeadline = 0;
+        private InetAddress[] mAddresses;
+        private int mAddressIndex = 0;
+        // Connection attempts in progress, and when to start the next one
+        private final List<Attempt> mAttempts = new ArrayList<>();
+        private long mNextAttemptTime = 0;
+        private IOException mConnectError;
+        private SocketChannel mChannel;
+        private SelectionKey mKey;
+        private SSLEngine mEngine;
+        // Encrypted bytes, in write mode
+        private ByteBuffer mNetIn;
+        private ByteBuffer mNetOut;
+        // Decrypted bytes not handled yet, in write mode
+        private ByteBuffer mAppIn;
+        private ByteBuffer mRequestBytes;
+        private final long mStartTime;
+        // When the request started to be sent, once connected
+        private long mSendTime = 0;
+
+        private boolean mChunked;
+        private long mBodyRemaining;
+        private ChunkState mChunkState = ChunkState.SIZE;
+        private long mChunkRemaining;
+        private boolean mBodyDone;
+        private ByteBuffer mBody;
+        private long mBodyStart;
+        private int mChunkSize = MIN_CHUNK_SIZE;
+
+        private Connection(Request request, Listener listener) {
+            mRequest = request;
+            mListener = listener;
+            mUrl = request.getUrl();
+            mSecure = "https".equalsIgnoreCase(mUrl.getProtocol());
+            mStartTime = mClock.elapsedRealtime();
+        }
+
+        @Override
+        public void cancel() {
+            mCancelled = true;
+            post(this::close);
+        }
+
+        private int getPort() {
+            return mUrl.getPort() != -1 ? mUrl.getPort() : mUrl.getDefaultPort();
+        }
+
+        private void resolve() {
+            if (mCancelled) {
+                return;
+            }
+            mConnections.add(this);
+            if (mRequest.getConnectTimeout() > 0) {
+                mDeadline = mClock.elapsedRealtime() + mRequest.getConnectTimeout();
+            }
+            String host = mUrl.getHost();
+            DownloadNetwork network = mRequest.getNetwork();
+            mResolver.execute(() -> {
+                try {
+                    InetAddress[] addresses = network != null ? network.getAllByName(host) :
+                            InetAddress.getAllByName(host);
+                    post(() -> {
+                        mAddresses = sortAddresses(host, addresses);
+                        mState = State.CONNECTING;
+                        startAttempt();
+                    });
+                } catch (UnknownHostException e) {
+                    post(() -> fail(e));
+                }
+            });
+        }
+
+        /**
+         * Start connecting to the next address of the host while the earlier
+         * attempts go on, the first one to connect is used. Fail once every address
+         * failed.
+         */
+        private void startAttempt() {
+            mNextAttemptTime = 0;
+            if (mState != State.CONNECTING) {
+                return;
+            }
+            if (mAddressIndex >= mAddresses.length) {
+                if (mAttempts.isEmpty()) {
+                    fail(mConnectError != null ? mConnectError :
+                            new IOException("No address for " + mUrl.getHost()));
+                }
+                return;
+            }
+            Attempt attempt = new Attempt(mAddresses[mAddressIndex++]);
+            mAttempts.add(attempt);
+            ConnectionMetrics.addAttempt(attempt.mAddress);
+            try {
+                attempt.mChannel = SocketChannel.open();
+                attempt.mChannel.configureBlocking(false);
+                if (mRequest.getNetwork() != null) {
+                    mRequest.getNetwork().bindSocket(attempt.mChannel.socket());
+                }
+                if (attempt.mChannel.connect(new InetSocketAddress(attempt.mAddress, getPort()))) {
+                    onAttemptConnected(attempt);
+                    return;
+                }
+                attempt.mKey = attempt.mChannel.register(mSelector, SelectionKey.OP_CONNECT,
+                        attempt);
+                mNextAttemptTime = mClock.elapsedRealtime() + CONNECTION_ATTEMPT_DELAY_MS;
+            } catch (IOException e) {
+                onAttemptFailed(attempt, e);
+            }
+        }
+
+        private void onAttemptFailed(Attempt attempt, IOException e) {
+            Log.d(TAG, "Could not connect to " + attempt.mAddress, e);
+            ConnectionMetrics.addFailure(attempt.mAddress);
+            attempt.close();
+            mAttempts.remove(attempt);
+            mConnectError = e;
+            // No need to wait for the next address
+            startAttempt();
+        }
+
+        private void onAttemptConnected(Attempt attempt) {
+            ConnectionMetrics.addSuccess(attempt.mAddress);
+            sPreferIpv6.put(mUrl.getHost(), attempt.mAddress instanceof Inet6Address);
+            mAttempts.remove(attempt);
+            for (Attempt other : mAttempts) {
+                other.close();
+            }
+            mAttempts.clear();
+            mNextAttemptTime = 0;
+            mChannel = attempt.mChannel;
+            try {
+                if (attempt.mKey != null) {
+                    mKey = attempt.mKey;
+                    mKey.attach(this);
+                    mKey.interestOps(0);
+                } else {
+                    mKey = mChannel.register(mSelector, 0, this);
+                }
+                onConnected();
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        private void onConnected() throws IOException {
+            mDeadline = 0;
+            mRequestBytes = formatRequest();
+            if (mSecure) {
+                mEngine = createEngine();
+                mNetIn = ByteBuffer.allocateDirect(mEngine.getSession().getPacketBufferSize());
+                mNetOut = ByteBuffer.allocateDirect(mEngine.getSession().getPacketBufferSize());
+                mAppIn = ByteBuffer.allocate(Math.max(MAX_HEADER_SIZE,
+                        mEngine.getSession().getApplicationBufferSize()));
+                mState = State.HANDSHAKING;
+                mEngine.beginHandshake();
+                handshake();
+            } else {
+                mAppIn = ByteBuffer.allocate(MAX_HEADER_SIZE);
+                mState = State.SENDING;
+                send();
+            }
+        }
+
+        private SSLEngine createEngine() throws IOException {
+            SSLContext context;
+            try {
+                context = SSLContext.getDefault();
+            } catch (NoSuchAlgorithmException e) {
+                throw new SSLException("No TLS support", e);
+            }
+            SSLEngine engine = context.createSSLEngine(mUrl.getHost(), getPort());
+            engine.setUseClientMode(true);
+            SSLParameters parameters = engine.getSSLParameters();
+            parameters.setEndpointIdentificationAlgorithm("HTTPS");
+            // SNI carries host names only, IPv6 literals come in brackets
+            String host = mUrl.getHost();
+            if (!host.startsWith("[") && !InetAddresses.isNumericAddress(host)) {
+                parameters.setServerNames(Collections.singletonList(new SNIHostName(host)));
+            }
+            engine.setSSLParameters(parameters);
+            return engine;
+        }
+
+        private ByteBuffer formatRequest() {
+            String path = mUrl.getFile().isEmpty() ? "/" : mUrl.getFile();
+            StringBuilder request = new StringBuilder();
+            request.append("GET ").append(path).append(" HTTP/1.1\r\n");
+            request.append("Host: ").append(mUrl.getHost());
+            if (mUrl.getPort() != -1 && mUrl.getPort() != mUrl.getDefaultPort()) {
+                request.append(':').append(mUrl.getPort());
+            }
+            request.append("\r\n");
+            for (Map.Entry<String, String> header : mRequest.getHeaders().entrySet()) {
+                request.append(header.getKey()).append(": ").append(header.getValue())
+                        .append("\r\n");
+            }
+            request.append("Accept-Encoding: identity\r\n");
+            request.append("Connection: close\r\n\r\n");
+            return ByteBuffer.wrap(request.toString().getBytes(StandardCharsets.ISO_8859_1));
+        }
+
+        private void setInterest(int ops) {
+            if (mKey != null && mKey.isValid()) {
+                mKey.interestOps(ops);
+            }
+        }
+
+        @Override
+        public void onReady(int readyOps) {
+            if (mCancelled) {
+                close();
+                return;
+            }
+            try {
+                switch (mState) {
+                    case HANDSHAKING:
+                        handshake();
+                        break;
+                    case SENDING:
+                        send();
+                        break;
+                    case READING_HEADERS:
+                    case READING_BODY:
+                        if ((readyOps & SelectionKey.OP_WRITE) != 0 && flush()) {
+                            setInterest(SelectionKey.OP_READ);
+                        }
+                        if ((readyOps & SelectionKey.OP_READ) != 0) {
+                            read();
+                        }
+                        break;
+                }
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        /**
+         * Write out what was encrypted.
+         *
+         * @return whether everything was written
+         */
+        private boolean flush() throws IOException {
+            mNetOut.flip();
+            mChannel.write(mNetOut);
+            boolean flushed = !mNetOut.hasRemaining();
+            mNetOut.compact();
+            return flushed;
+        }
+
+        private void runDelegatedTasks() {
+            Runnable task;
+            while ((task = mEngine.getDelegatedTask()) != null) {
+                task.run();
+            }
+        }
+
+        private void handshake() throws IOException {
+            while (mState == State.HANDSHAKING) {
+                switch (mEngine.getHandshakeStatus()) {
+                    case NEED_TASK:
+                        runDelegatedTasks();
+                        break;
+                    case NEED_WRAP:
+                        mEngine.wrap(EMPTY, mNetOut);
+                        if (!flush()) {
+                            setInterest(SelectionKey.OP_WRITE);
+                            return;
+                        }
+                        break;
+                    case NEED_UNWRAP: {
+                        if (mNetOut.position() > 0 && !flush()) {
+                            setInterest(SelectionKey.OP_WRITE);
+                            return;
+                        }
+                        mNetIn.flip();
+                        SSLEngineResult result = mEngine.unwrap(mNetIn, mAppIn);
+                        mNetIn.compact();
+                        if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                            throw new EOFException("Connection closed during handshake");
+                        }
+                        if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW ||
+                                result.bytesConsumed() == 0) {
+                            int read = mChannel.read(mNetIn);
+                            if (read < 0) {
+                                throw new EOFException("Connection closed during handshake");
+                            } else if (read == 0) {
+                                setInterest(SelectionKey.OP_READ);
+                                return;
+                            }
+                        }
+                        break;
+                    }
+                    default:
+                        if (mNetOut.position() > 0 && !flush()) {
+                            setInterest(SelectionKey.OP_WRITE);
+                            return;
+                        }
+                        mState = State.SENDING;
+                        send();
+                        return;
+                }
+            }
+        }
+
+        private void send() throws IOException {
+            if (mSendTime == 0) {
+                mSendTime = mClock.elapsedRealtime();
+            }
+            if (mSecure) {
+                while (mRequestBytes.hasRemaining()) {
+                    mEngine.wrap(mRequestBytes, mNetOut);
+                    if (!flush()) {
+                        setInterest(SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+                if (mNetOut.position() > 0 && !flush()) {
+                    setInterest(SelectionKey.OP_WRITE);
+                    return;
+                }
+            } else {
+                mChannel.write(mRequestBytes);
+                if (mRequestBytes.hasRemaining()) {
+                    setInterest(SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            mState = State.READING_HEADERS;
+            setInterest(SelectionKey.OP_READ);
+            read();
+        }
+
+        /**
+         * Read decrypted bytes into the given buffer.
+         *
+         * @return the number of bytes read, 0 if none is available yet, -1 at the end
+         * of the stream
+         */
+        private int readDecrypted(ByteBuffer dst) throws IOException {
+            if (!mSecure) {
+                return mChannel.read(dst);
+            }
+            int start = dst.position();
+            while (true) {
+                mNetIn.flip();
+                SSLEngineResult result = mEngine.unwrap(mNetIn, dst);
+                mNetIn.compact();
+                int produced = dst.position() - start;
+                switch (result.getStatus()) {
+                    case CLOSED:
+                        return produced > 0 ? produced : -1;
+                    case BUFFER_OVERFLOW:
+                        if (produced > 0) {
+                            return produced;
+                        }
+                        throw new SSLException("No room to decrypt into");
+                    case OK:
+                        if (result.getHandshakeStatus() ==
+                                SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                            runDelegatedTasks();
+                        }
+                        if (mEngine.getHandshakeStatus() ==
+                                SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                            // Post-handshake message, like a key update
+                            mEngine.wrap(EMPTY, mNetOut);
+                            if (!flush()) {
+                                setInterest(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                            }
+                        }
+                        if (produced > 0) {
+                            return produced;
+                        }
+                        if (result.bytesConsumed() > 0) {
+                            continue;
+                        }
+                        // Fall through, a whole record is needed
+                    case BUFFER_UNDERFLOW:
+                        if (!mNetIn.hasRemaining()) {
+                            ByteBuffer bigger = ByteBuffer.allocateDirect(mNetIn.capacity() * 2);
+                            mNetIn.flip();
+                            bigger.put(mNetIn);
+                            mNetIn = bigger;
+                        }
+                        int read = mChannel.read(mNetIn);
+                        if (read <= 0) {
+                            return produced > 0 ? produced : read;
+                        }
+                        break;
+                }
+            }
+        }
+
+        private void read() throws IOException {
+            while (mState == State.READING_HEADERS) {
+                if (!parseHeaders()) {
+                    if (!mAppIn.hasRemaining()) {
+                        throw new IOException("Response headers are too large");
+                    }
+                    int read = readDecrypted(mAppIn);
+                    if (read < 0) {
+                        throw new EOFException("Connection closed before the response");
+                    } else if (read == 0) {
+                        return;
+                    }
+                }
+            }
+            while (mState == State.READING_BODY) {
+                if (mBody == null) {
+                    mBody = mBufferPool.poll();
+                    if (mBody == null) {
+                        // Buffered bytes can wait with the rest in the socket
+                        setInterest(0);
+                        mWaitingForBuffers.add(this);
+                        return;
+                    }
+                    mBody.limit(Math.min(mChunkSize, mBody.capacity()));
+                    mBodyStart = mClock.elapsedRealtime();
+                }
+                int allowance = mRateLimiter.getAllowance(mBody.remaining());
+                if (allowance == 0) {
+                    setInterest(0);
+                    mRateLimited.add(this);
+                    long until = mClock.elapsedRealtime() +
+                            Math.max(mRateLimiter.getDelayMillis(mBody.remaining()), 1);
+                    if (mRateLimitedUntil == 0 || until < mRateLimitedUntil) {
+                        mRateLimitedUntil = until;
+                    }
+                    return;
+                }
+                int limit = mBody.limit();
+                mBody.limit(mBody.position() + allowance);
+                int read;
+                try {
+                    read = mChunked ? readChunked() : readIdentity();
+                } finally {
+                    mBody.limit(limit);
+                }
+                if (read > 0) {
+                    mRateLimiter.consume(read);
+                }
+                if (read < 0 && !mBodyDone) {
+                    if (mChunked || mBodyRemaining > 0) {
+                        throw new EOFException("Connection closed before the end of the body");
+                    }
+                    mBodyDone = true;
+                }
+                if (mBodyDone) {
+                    complete();
+                    return;
+                }
+                if (!mBody.hasRemaining()) {
+                    deliver();
+                } else if (read == 0) {
+                    return;
+                }
+            }
+        }
+
+        private void resumeReading() {
+            if (mState != State.READING_BODY) {
+                return;
+            }
+            setInterest(SelectionKey.OP_READ);
+            try {
+                read();
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        /**
+         * @return whether the status line and headers were all there
+         */
+        private boolean parseHeaders() throws IOException {
+            byte[] data = mAppIn.array();
+            int length = mAppIn.position();
+            int end = -1;
+            for (int i = 3; i < length; i++) {
+                if (data[i] == '\n' && data[i - 1] == '\r' && data[i - 2] == '\n' &&
+                        data[i - 3] == '\r') {
+                    end = i + 1;
+                    break;
+                }
+            }
+            if (end < 0) {
+                return false;
+            }
+            String[] lines = new String(data, 0, end - 4, StandardCharsets.ISO_8859_1)
+                    .split("\r\n");
+            mAppIn.flip();
+            mAppIn.position(end);
+            mAppIn.compact();
+
+            String[] status = lines[0].split(" ", 3);
+            if (status.length < 2 || !status[0].startsWith("HTTP/")) {
+                throw new IOException("Unexpected status line: " + lines[0]);
+            }
+            int code;
+            try {
+                code = Integer.parseInt(status[1]);
+            } catch (NumberFormatException e) {
+                throw new IOException("Unexpected status line: " + lines[0]);
+            }
+            if (code / 100 == 1) {
+                // Interim response, the actual one follows
+                return true;
+            }
+            Map<String, List<String>> headers = new LinkedHashMap<>();
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon <= 0) {
+                    continue;
+                }
+                String name = lines[i].substring(0, colon).trim();
+                String value = lines[i].substring(colon + 1).trim();
+                List<String> values = null;
+                for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+                    if (entry.getKey().equalsIgnoreCase(name)) {
+                        values = entry.getValue();
+                    }
+                }
+                if (values == null) {
+                    values = new ArrayList<>();
+                    headers.put(name, values);
+                }
+                values.add(value);
+            }
+            Response response = new Response(mUrl, code, headers, mSendTime - mStartTime,
+                    mClock.elapsedRealtime() - mSendTime);
+            String transferEncoding = response.get("Transfer-Encoding");
+            mChunked = transferEncoding != null &&
+                    transferEncoding.toLowerCase().contains("chunked");
+            mBodyRemaining = response.getContentLength();
+            if (code == 204 || code == 304) {
+                mBodyRemaining = 0;
+            }
+
+            mState = State.READING_BODY;
+            if (!mListener.onResponse(this, response) || mCancelled) {
+                close();
+                return true;
+            }
+            if (!mChunked && mBodyRemaining == 0) {
+                mBodyDone = true;
+                complete();
+            }
+            return true;
+        }
+
+        /**
+         * Move buffered bytes to the body, up to the given count.
+         */
+        private int drainAppIn(int count) {
+            mAppIn.flip();
+            int moved = Math.min(count, Math.min(mAppIn.remaining(), mBody.remaining()));
+            ByteBuffer slice = mAppIn.slice();
+            slice.limit(moved);
+            mBody.put(slice);
+            mAppIn.position(mAppIn.position() + moved);
+            mAppIn.compact();
+            return moved;
+        }
+
+        private int readIdentity() throws IOException {
+            int allowed = mBody.remaining();
+            if (mBodyRemaining >= 0) {
+                allowed = (int) Math.min(allowed, mBodyRemaining);
+            }
+            int read;
+            if (mAppIn.position() > 0) {
+                read = drainAppIn(allowed);
+            } else if (!mSecure || mBody.remaining() >=
+                    mEngine.getSession().getApplicationBufferSize()) {
+                int limit = mBody.limit();
+                if (!mSecure) {
+                    mBody.limit(mBody.position() + allowed);
+                }
+                try {
+                    read = readDecrypted(mBody);
+                } finally {
+                    mBody.limit(limit);
+                }
+                if (read > allowed) {
+                    // The server sent more than it announced
+                    mBody.position(mBody.position() - (read - allowed));
+                    read = allowed;
+                }
+            } else {
+                // Not enough room left to decrypt a record in place
+                read = readDecrypted(mAppIn);
+                if (read > 0) {
+                    read = drainAppIn(allowed);
+                }
+            }
+            if (read > 0 && mBodyRemaining > 0) {
+                mBodyRemaining -= read;
+                mBodyDone = mBodyRemaining == 0;
+            }
+            return read;
+        }
+
+        /**
+         * @return the next line of the buffer, in read mode, or null if it isn't all
+         * there yet
+         */
+        private String readLine(ByteBuffer buffer) {
+            for (int i = buffer.position(); i < buffer.limit(); i++) {
+                if (buffer.get(i) == '\n') {
+                    byte[] line = new byte[i - buffer.position()];
+                    buffer.get(line);
+                    buffer.get();
+                    return new String(line, StandardCharsets.ISO_8859_1).trim();
+                }
+            }
+            return null;
+        }
+
+        private int readChunked() throws IOException {
+            int produced = 0;
+            while (mBody.hasRemaining() && !mBodyDone) {
+                mAppIn.flip();
+                boolean needMore = false;
+                try {
+                    if (!mAppIn.hasRemaining()) {
+                        needMore = true;
+                    } else if (mChunkState == ChunkState.DATA) {
+                        int count = (int) Math.min(mChunkRemaining,
+                                Math.min(mAppIn.remaining(), mBody.remaining()));
+                        ByteBuffer slice = mAppIn.slice();
+                        slice.limit(count);
+                        mBody.put(slice);
+                        mAppIn.position(mAppIn.position() + count);
+                        mChunkRemaining -= count;
+                        produced += count;
+                        if (mChunkRemaining == 0) {
+                            mChunkState = ChunkState.DATA_END;
+                        }
+                    } else {
+                        String line = readLine(mAppIn);
+                        if (line == null) {
+                            needMore = true;
+                        } else if (mChunkState == ChunkState.SIZE) {
+                            int extension = line.indexOf(';');
+                            String size = extension >= 0 ? line.substring(0, extension) : line;
+                            try {
+                                mChunkRemaining = Long.parseLong(size.trim(), 16);
+                            } catch (NumberFormatException e) {
+                                throw new IOException("Invalid chunk size: " + line);
+                            }
+                            mChunkState = mChunkRemaining == 0 ? ChunkState.TRAILER :
+                                    ChunkState.DATA;
+                        } else if (mChunkState == ChunkState.DATA_END) {
+                            mChunkState = ChunkState.SIZE;
+                        } else if (line.isEmpty()) {
+                            mBodyDone = true;
+                        }
+                    }
+                } finally {
+                    mAppIn.compact();
+                }
+                if (needMore) {
+                    if (!mAppIn.hasRemaining()) {
+                        throw new IOException("Chunk header is too large");
+                    }
+                    int read = readDecrypted(mAppIn);
+                    if (read <= 0) {
+                        return produced > 0 ? produced : read;
+                    }
+                }
+            }
+            return produced;
+        }
+
+        private void deliver() {
+            // Fewer, larger chunks on fast connections, smoother progress on slow ones
+            long millis = mClock.elapsedRealtime() - mBodyStart;
+            if (!mBody.hasRemaining()) {
+                if (millis < CHUNK_DURATION_MS / 2) {
+                    mChunkSize = Math.min(mChunkSize * 2, mBufferPool.getBufferSize());
+                } else if (millis > CHUNK_DURATION_MS * 2) {
+                    mChunkSize = Math.max(mChunkSize / 2, MIN_CHUNK_SIZE);
+                }
+            }
+            ByteBuffer body = mBody;
+            mBody = null;
+            body.flip();
+            if (body.hasRemaining()) {
+                mListener.onData(this, body);
+            } else {
+                mBufferPool.release(body);
+            }
+            if (mCancelled) {
+                close();
+            }
+        }
+
+        private void complete() {
+            if (mBody != null) {
+                deliver();
+            }
+            if (mState != State.CLOSED && !mCancelled) {
+                close();
+                mListener.onComplete(this);
+            }
+        }
+
+        private void fail(IOException e) {
+            if (mState == State.CLOSED) {
+                return;
+            }
+            close();
+            if (!mCancelled) {
+                mListener.onFailure(this, e);
+            }
+        }
+
+        private void closeChannel() {
+            for (Attempt attempt : mAttempts) {
+                attempt.close();
+            }
+            mAttempts.clear();
+            mNextAttemptTime = 0;
+            if (mKey != null) {
+                mKey.cancel();
+                mKey = null;
+            }
+            if (mChannel != null) {
+                try {
+                    mChannel.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not close connection to " + mUrl.getHost(), e);
+                }
+                mChannel = null;
+            }
+        }
+
+        private void close() {
+            if (mState == State.CLOSED) {
+                return;
+            }
+            mState = State.CLOSED;
+            mDeadline = 0;
+            closeChannel();
+            if (mBody != null) {
+                mBufferPool.release(mBody);
+                mBody = null;
+            }
+            mConnections.remove(this);
+            mWaitingForBuffers.remove(this);
+        }
+
+        /**
+         * A connection to one of the addresses of the host, racing the others.
+         */
+        private class Attempt implements Selectable {
+
+            private final InetAddress mAddress;
+            private SocketChannel mChannel;
+            private SelectionKey mKey;
+
+            private Attempt(InetAddress address) {
+                mAddress = address;
+            }
+
+            @Override
+            public void onReady(int readyOps) {
+                if (mCancelled) {
+                    Connection.this.close();
+                    return;
+                }
+                try {
+                    if (mChannel.finishConnect()) {
+                        onAttemptConnected(this);
+                    }
+                } catch (IOException e) {
+                    onAttemptFailed(this, e);
+                }
+            }
+
+            private void close() {
+                if (mKey != null) {
+                    mKey.cancel();
+                }
+                try {
+                    mChannel.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not close connection to " + mAddress, e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2023 The PixelExperience Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixelexperience.ota.download;
+
+/**
+ * Token bucket shared by the connections of a download, holding their combined
+ * throughput to a rate that can be changed at any time. Connections ask how much
+ * they may read before reading and pay for what they actually read, which can run
+ * the bucket into debt that the following reads have to wait out.
+ */
+final class RateLimiter {
+
+    // Bytes that can be read at once after being idle, as time at the current rate
+    private static final long BURST_MS = 100;
+    private static final long MIN_BURST = 16 * 1024;
+    // Reads are held back until this much can be read, rather than trickling in
+    private static final int MIN_ALLOWANCE = 4 * 1024;
+
+    private final Clock mClock;
+    private long mRate = 0;
+    private double mTokens = 0;
+    private long mLastRefill = 0;
+    private volatile Runnable mRateListener;
+
+    RateLimiter(Clock clock) {
+        mClock = clock;
+    }
+
+    /**
+     * @param bytesPerSecond the rate to keep to, 0 for none
+     */
+    void setRate(long bytesPerSecond) {
+        synchronized (this) {
+            if (bytesPerSecond == mRate) {
+                return;
+            }
+            refill();
+            mRate = Math.max(bytesPerSecond, 0);
+            mTokens = Math.min(mTokens, getCapacity());
+            notifyAll();
+        }
+        Runnable listener = mRateListener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    synchronized long getRate() {
+        return mRate;
+    }
+
+    synchronized boolean isLimited() {
+        return mRate > 0;
+    }
+
+    /**
+     * @return how many bytes, up to max, can be read right now, or 0 if none
+     */
+    synchronized int getAllowance(int max) {
+        if (mRate == 0) {
+            return max;
+        }
+        refill();
+        if (mTokens < Math.min(max, MIN_ALLOWANCE)) {
+            return 0;
+        }
+        return (int) Math.min(max, (long) mTokens);
+    }
+
+    /**
+     * Wait until something can be read.
+     *
+     * @return how many bytes, up to max, can be read, or 0 if that took too long
+     */
+    synchronized int getAllowance(int max, long timeoutMs) throws InterruptedException {
+        long deadline = mClock.elapsedRealtime() + timeoutMs;
+        int allowance;
+        while ((allowance = getAllowance(max)) == 0) {
+            long left = Math.min(deadline - mClock.elapsedRealtime(),
+                    getDelayMillis(max));
+            if (left <= 0) {
+                return 0;
+            }
+            wait(left);
+        }
+        return allowance;
+    }
+
+    /**
+     * Pay for bytes that were read.
+     */
+    synchronized void consume(int bytes) {
+        if (mRate > 0) {
+            mTokens -= bytes;
+        }
+    }
+
+    /**
+     * @return how long until a read of up to max bytes is allowed, 0 if it is now
+     */
+    synchronized long getDelayMillis(int max) {
+        if (mRate == 0) {
+            return 0;
+        }
+        refill();
+        double missing = Math.min(max, MIN_ALLOWANCE) - mTokens;
+        if (missing <= 0) {
+            return 0;
+        }
+        return Math.max((long) Math.ceil(missing * 1000 / mRate), 1);
+    }
+
+    /**
+     * Set what to run when the rate changed, for readers that aren't waiting in
+     * getAllowance(int, long).
+     */
+    void setRateListener(Runnable listener) {
+        mRateListener = listener;
+    }
+
+    private long getCapacity() {
+        return Math.max(mRate * BURST_MS / 1000, MIN_BURST);
+    }
+
+    private void refill() {
+        long now = mClock.elapsedRealtime();
+        if (mRate > 0) {
+            mTokens = Math.min(mTokens + (now - mLastRefill) * mRate / 1000.0, getCapacity());
+        }
+        mLastRefill = now;
+    }
+}
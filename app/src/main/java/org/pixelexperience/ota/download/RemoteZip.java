@@ -0,0 +1,379 @@
+/*
+ * Copyright (C) 2023 The PixelExperience Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixelexperience.ota.download;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * A zip file on a server, of which only the central directory and the entries
+ * asked for are fetched, through range requests. Every read after the first one
+ * is validated against the file the first one saw, so that a file replaced on
+ * the server meanwhile is noticed rather than mixed up.
+ */
+public final class RemoteZip {
+
+    private static final String TAG = "RemoteZip";
+
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    private static final int READ_TIMEOUT_MS = 20000;
+    // https://pkware.cachefly.net/webdocs/casestudies/APPNOTE.TXT
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int EOCD_SIZE = 22;
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int ZIP64_LOCATOR_SIZE = 20;
+    private static final int ZIP64_EOCD_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_EOCD_SIZE = 56;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final long ZIP64_MAGIC = 0xffffffffL;
+    // Entries read whole, like properties, can't be larger than this
+    private static final int MAX_READ_SIZE = 1024 * 1024;
+    private static final Pattern CONTENT_RANGE_PATTERN =
+            Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+)");
+
+    private final Map<String, Entry> mEntries = new HashMap<>();
+    private URL mUrl;
+    private long mLength;
+    // Validator of the file the first read saw, null if the server gave none
+    private String mIfRange;
+
+    public static final class Entry {
+        private final String mName;
+        private final int mMethod;
+        private final long mCompressedSize;
+        private final long mSize;
+        private final long mLocalHeaderOffset;
+
+        private Entry(String name, int method, long compressedSize, long size,
+                      long localHeaderOffset) {
+            mName = name;
+            mMethod = method;
+            mCompressedSize = compressedSize;
+            mSize = size;
+            mLocalHeaderOffset = localHeaderOffset;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * @return ZipEntry.STORED or ZipEntry.DEFLATED
+         */
+        public int getMethod() {
+            return mMethod;
+        }
+
+        public long getCompressedSize() {
+            return mCompressedSize;
+        }
+
+        public long getSize() {
+            return mSize;
+        }
+    }
+
+    private RemoteZip(URL url) {
+        mUrl = url;
+    }
+
+    /**
+     * Fetch the central directory of the zip file at the given URL.
+     *
+     * @throws HttpStatusException if the server doesn't accept range requests
+     */
+    public static RemoteZip open(String url) throws IOException {
+        RemoteZip zip = new RemoteZip(new URL(url));
+        zip.readCentralDirectory();
+        return zip;
+    }
+
+    /**
+     * @return the URL the file was read from, after redirects
+     */
+    public String getUrl() {
+        return mUrl.toString();
+    }
+
+    public long getLength() {
+        return mLength;
+    }
+
+    /**
+     * @return the entry with the given name, or null if there's none
+     */
+    public Entry getEntry(String name) {
+        return mEntries.get(name);
+    }
+
+    /**
+     * @return the offset of the data of the entry in the zip file
+     */
+    public long getDataOffset(Entry entry) throws IOException {
+        ByteBuffer header = read(entry.mLocalHeaderOffset, LOCAL_HEADER_SIZE);
+        if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+            throw new IOException("No local header for " + entry.mName);
+        }
+        // The extra field can differ from the one in the central directory
+        int nameLength = header.getShort(26) & 0xffff;
+        int extraLength = header.getShort(28) & 0xffff;
+        return entry.mLocalHeaderOffset + LOCAL_HEADER_SIZE + nameLength + extraLength;
+    }
+
+    /**
+     * @return the uncompressed content of the entry
+     */
+    public byte[] read(Entry entry) throws IOException {
+        if (entry.mSize > MAX_READ_SIZE || entry.mCompressedSize > MAX_READ_SIZE) {
+            throw new IOException(entry.mName + " is too large to be read whole");
+        }
+        ByteBuffer data = read(getDataOffset(entry), (int) entry.mCompressedSize);
+        if (entry.mMethod == ZipEntry.STORED) {
+            return data.array();
+        } else if (entry.mMethod != ZipEntry.DEFLATED) {
+            throw new IOException("Unsupported compression method " + entry.mMethod +
+                    " for " + entry.mName);
+        }
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(data.array());
+            byte[] content = new byte[(int) entry.mSize];
+            int length = 0;
+            while (length < content.length && !inflater.finished()) {
+                int inflated = inflater.inflate(content, length, content.length - length);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += inflated;
+            }
+            if (length != content.length) {
+                throw new IOException(entry.mName + " is truncated");
+            }
+            return content;
+        } catch (DataFormatException e) {
+            throw new IOException("Could not inflate " + entry.mName, e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private void readCentralDirectory() throws IOException {
+        // The end of central directory record is followed by a comment of up to
+        // MAX_COMMENT_SIZE bytes, the tail of the file holds it either way
+        ByteBuffer tail = readTail(EOCD_SIZE + MAX_COMMENT_SIZE + ZIP64_LOCATOR_SIZE);
+        long tailOffset = mLength - tail.capacity();
+        int eocd = -1;
+        for (int i = tail.capacity() - EOCD_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == EOCD_SIGNATURE &&
+                    i + EOCD_SIZE + (tail.getShort(i + 20) & 0xffff) == tail.capacity()) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd < 0) {
+            throw new IOException("Not a zip file: " + mUrl);
+        }
+        long count = tail.getShort(eocd + 10) & 0xffff;
+        long size = tail.getInt(eocd + 12) & ZIP64_MAGIC;
+        long offset = tail.getInt(eocd + 16) & ZIP64_MAGIC;
+        int locator = eocd - ZIP64_LOCATOR_SIZE;
+        if (locator >= 0 && tail.getInt(locator) == ZIP64_LOCATOR_SIGNATURE) {
+            ByteBuffer zip64 = read(tail.getLong(locator + 8), ZIP64_EOCD_SIZE);
+            if (zip64.getInt(0) != ZIP64_EOCD_SIGNATURE) {
+                throw new IOException("Invalid zip64 end of central directory");
+            }
+            count = zip64.getLong(32);
+            size = zip64.getLong(40);
+            offset = zip64.getLong(48);
+        }
+        if (size > Integer.MAX_VALUE || offset + size > mLength) {
+            throw new IOException("Invalid central directory of " + size + " bytes at " +
+                    offset);
+        }
+
+        ByteBuffer directory;
+        if (offset >= tailOffset) {
+            // Small files, the central directory came with the tail
+            directory = ByteBuffer.wrap(tail.array(), (int) (offset - tailOffset),
+                    (int) size).slice().order(ByteOrder.LITTLE_ENDIAN);
+        } else {
+            directory = read(offset, (int) size);
+        }
+        for (long i = 0; i < count; i++) {
+            Entry entry = readEntry(directory);
+            mEntries.put(entry.mName, entry);
+        }
+        Log.d(TAG, "Read " + mEntries.size() + " entries of " + mUrl);
+    }
+
+    private static Entry readEntry(ByteBuffer directory) throws IOException {
+        int start = directory.position();
+        if (directory.remaining() < CENTRAL_HEADER_SIZE ||
+                directory.getInt(start) != CENTRAL_HEADER_SIGNATURE) {
+            throw new IOException("Invalid central directory entry at " + start);
+        }
+        int method = directory.getShort(start + 10) & 0xffff;
+        long compressedSize = directory.getInt(start + 20) & ZIP64_MAGIC;
+        long size = directory.getInt(start + 24) & ZIP64_MAGIC;
+        int nameLength = directory.getShort(start + 28) & 0xffff;
+        int extraLength = directory.getShort(start + 30) & 0xffff;
+        int commentLength = directory.getShort(start + 32) & 0xffff;
+        long localHeaderOffset = directory.getInt(start + 42) & ZIP64_MAGIC;
+        int end = start + CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+        if (end > directory.limit()) {
+            throw new IOException("Truncated central directory entry at " + start);
+        }
+        byte[] name = new byte[nameLength];
+        directory.position(start + CENTRAL_HEADER_SIZE);
+        directory.get(name);
+
+        // Values that don't fit in 32 bits are in the zip64 extra field, in order
+        int extra = start + CENTRAL_HEADER_SIZE + nameLength;
+        int extraEnd = extra + extraLength;
+        while (extra + 4 <= extraEnd) {
+            int id = directory.getShort(extra) & 0xffff;
+            int length = directory.getShort(extra + 2) & 0xffff;
+            int field = extra + 4;
+            if (id == ZIP64_EXTRA_ID) {
+                if (size == ZIP64_MAGIC && field + 8 <= extraEnd) {
+                    size = directory.getLong(field);
+                    field += 8;
+                }
+                if (compressedSize == ZIP64_MAGIC && field + 8 <= extraEnd) {
+                    compressedSize = directory.getLong(field);
+                    field += 8;
+                }
+                if (localHeaderOffset == ZIP64_MAGIC && field + 8 <= extraEnd) {
+                    localHeaderOffset = directory.getLong(field);
+                }
+                break;
+            }
+            extra += 4 + length;
+        }
+        directory.position(end);
+        return new Entry(new String(name, StandardCharsets.UTF_8), method,
+                compressedSize, size, localHeaderOffset);
+    }
+
+    /**
+     * Read the last bytes of the file, up to the given count, and learn its length
+     * and validators.
+     */
+    private ByteBuffer readTail(int count) throws IOException {
+        HttpURLConnection connection = openConnection("bytes=-" + count);
+        try {
+            long[] range = getContentRange(connection);
+            // Redirects were followed, later reads go straight to the file
+            mUrl = connection.getURL();
+            mLength = range[2];
+            String eTag = connection.getHeaderField("ETag");
+            mIfRange = eTag != null && !eTag.startsWith("W/") ? eTag :
+                    connection.getHeaderField("Last-Modified");
+            return readBody(connection, (int) (range[1] - range[0] + 1));
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private ByteBuffer read(long offset, int count) throws IOException {
+        if (offset < 0 || offset + count > mLength) {
+            throw new IOException("Range " + offset + "+" + count + " is outside of the file");
+        }
+        HttpURLConnection connection = openConnection(
+                "bytes=" + offset + "-" + (offset + count - 1));
+        try {
+            long[] range = getContentRange(connection);
+            if (range[0] != offset || range[1] != offset + count - 1 || range[2] != mLength) {
+                throw new IOException("Unexpected range " + range[0] + "-" + range[1] + "/" +
+                        range[2]);
+            }
+            return readBody(connection, count);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private HttpURLConnection openConnection(String range) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) mUrl.openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        connection.setReadTimeout(READ_TIMEOUT_MS);
+        connection.setRequestProperty("User-Agent", "org.pixelexperience.ota");
+        // Offsets refer to the stored bytes
+        connection.setRequestProperty("Accept-Encoding", "identity");
+        connection.setRequestProperty("Range", range);
+        if (mIfRange != null) {
+            connection.setRequestProperty("If-Range", mIfRange);
+        }
+        return connection;
+    }
+
+    /**
+     * @return the first byte, last byte and length of the file of a partial reply
+     */
+    private long[] getContentRange(HttpURLConnection connection) throws IOException {
+        int code = connection.getResponseCode();
+        if (code != HttpURLConnection.HTTP_PARTIAL) {
+            // A full reply to a validated range request means the file changed
+            throw new HttpStatusException(code, mIfRange != null && code / 100 == 2 ?
+                    mUrl + " changed while being read" :
+                    mUrl + " doesn't accept range requests: " + code);
+        }
+        String contentRange = connection.getHeaderField("Content-Range");
+        Matcher matcher = contentRange != null ?
+                CONTENT_RANGE_PATTERN.matcher(contentRange) : null;
+        if (matcher == null || !matcher.matches()) {
+            throw new IOException("Invalid Content-Range: " + contentRange);
+        }
+        return new long[]{Long.parseLong(matcher.group(1)), Long.parseLong(matcher.group(2)),
+                Long.parseLong(matcher.group(3))};
+    }
+
+    private static ByteBuffer readBody(HttpURLConnection connection, int count)
+            throws IOException {
+        byte[] data = new byte[count];
+        int length = 0;
+        try (InputStream in = connection.getInputStream()) {
+            while (length < count) {
+                int read = in.read(data, length, count - length);
+                if (read < 0) {
+                    throw new IOException("Connection closed after " + length + " of " +
+                            count + " bytes");
+                }
+                length += read;
+            }
+        }
+        return ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
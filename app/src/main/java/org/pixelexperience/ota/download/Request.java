@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2023 The PixelExperience Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixelexperience.ota.download;
+
+import java.net.URL;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A GET request sent through a Transport.
+ */
+final class Request {
+
+    private final URL mUrl;
+    private final Map<String, String> mHeaders = new LinkedHashMap<>();
+    private int mConnectTimeout;
+    private DownloadNetwork mNetwork;
+
+    Request(URL url) {
+        mUrl = url;
+    }
+
+    URL getUrl() {
+        return mUrl;
+    }
+
+    Request setHeader(String name, String value) {
+        mHeaders.put(name, value);
+        return this;
+    }
+
+    String getHeader(String name) {
+        return mHeaders.get(name);
+    }
+
+    Map<String, String> getHeaders() {
+        return Collections.unmodifiableMap(mHeaders);
+    }
+
+    /**
+     * @param connectTimeout in milliseconds, 0 to wait as long as the system does
+     */
+    Request setConnectTimeout(int connectTimeout) {
+        mConnectTimeout = connectTimeout;
+        return this;
+    }
+
+    int getConnectTimeout() {
+        return mConnectTimeout;
+    }
+
+    /**
+     * @param network to resolve and connect through, null for the default network
+     */
+    Request setNetwork(DownloadNetwork network) {
+        mNetwork = network;
+        return this;
+    }
+
+    DownloadNetwork getNetwork() {
+        return mNetwork;
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2023 The PixelExperience Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixelexperience.ota.download;
+
+import java.net.URL;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The status and headers of the response to a Request.
+ */
+final class Response implements DownloadClient.Headers {
+
+    private final URL mUrl;
+    private final int mCode;
+    private final Map<String, List<String>> mHeaders;
+    private final long mConnectMillis;
+    private final long mFirstByteMillis;
+
+    /**
+     * @param connectMillis how long it took to connect, TLS handshake included
+     * @param firstByteMillis how long the server took to reply once connected
+     */
+    Response(URL url, int code, Map<String, List<String>> headers, long connectMillis,
+             long firstByteMillis) {
+        mUrl = url;
+        mCode = code;
+        mHeaders = headers;
+        mConnectMillis = connectMillis;
+        mFirstByteMillis = firstByteMillis;
+    }
+
+    URL getUrl() {
+        return mUrl;
+    }
+
+    int getCode() {
+        return mCode;
+    }
+
+    long getConnectMillis() {
+        return mConnectMillis;
+    }
+
+    long getFirstByteMillis() {
+        return mFirstByteMillis;
+    }
+
+    /**
+     * @return every value of the given header, in order
+     */
+    List<String> getValues(String name) {
+        for (Map.Entry<String, List<String>> entry : mHeaders.entrySet()) {
+            if (name.equalsIgnoreCase(entry.getKey())) {
+                return entry.getValue();
+            }
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * @return the length of the body, or -1 if unknown
+     */
+    long getContentLength() {
+        if ("chunked".equalsIgnoreCase(get("Transfer-Encoding"))) {
+            return -1;
+        }
+        String contentLength = get("Content-Length");
+        try {
+            return contentLength != null ? Long.parseLong(contentLength.trim()) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return the last value of the given header
+     */
+    @Override
+    public String get(String name) {
+        List<String> values = getValues(name);
+        return values.isEmpty() ? null : values.get(values.size() - 1);
+    }
+
+    @Override
+    public Map<String, List<String>> getAll() {
+        return mHeaders;
+    }
+}
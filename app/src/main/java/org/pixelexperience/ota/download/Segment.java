@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2023 The PixelExperience Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixelexperience.ota.download;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A byte range of the destination file, [start, end). An end of -1 means that
+ * the range extends to the end of the response. The end can move backwards
+ * while the range is being downloaded when another connection takes over a part.
+ */
+final class Segment {
+
+    // Idle connections take over half of the largest range left, if it's big enough
+    private static final long MIN_STEAL_SIZE = 4 * 1024 * 1024;
+
+    final long mStart;
+    private long mEnd;
+    // Everything before this was written to the file
+    private long mPosition;
+    // Everything before this was read from the network, the bytes from mPosition
+    // are waiting to be written
+    private long mReceived;
+
+    Segment(long start, long end) {
+        mStart = start;
+        mEnd = end;
+        mPosition = start;
+        mReceived = start;
+    }
+
+    synchronized long getPosition() {
+        return mPosition;
+    }
+
+    synchronized long getRemaining() {
+        return mEnd < 0 ? -1 : mEnd - mPosition;
+    }
+
+    synchronized long getUnreceived() {
+        return mEnd < 0 ? -1 : mEnd - mReceived;
+    }
+
+    synchronized String getRangeHeader() {
+        return "bytes=" + mReceived + "-" + (mEnd < 0 ? "" : mEnd - 1);
+    }
+
+    /**
+     * Hand up to the given share of what's left to a new segment, keeping at
+     * least MIN_STEAL_SIZE. Nothing is handed over if less than that would be.
+     */
+    synchronized Segment split(double share) {
+        long remaining = getUnreceived();
+        long stolen = Math.min((long) (remaining * share), remaining - MIN_STEAL_SIZE);
+        if (stolen < MIN_STEAL_SIZE) {
+            return null;
+        }
+        long end = mEnd;
+        mEnd = mReceived + remaining - stolen;
+        return new Segment(mEnd, end);
+    }
+
+    /**
+     * Account for the bytes read into the buffer, dropping what was read past
+     * the end if the range was split meanwhile.
+     *
+     * @return the position of the buffer in the file, or -1 if nothing is left
+     */
+    synchronized long receive(ByteBuffer buffer) {
+        long remaining = getUnreceived();
+        if (remaining >= 0 && buffer.remaining() > remaining) {
+            buffer.limit(buffer.position() + (int) remaining);
+        }
+        if (!buffer.hasRemaining()) {
+            return -1;
+        }
+        long position = mReceived;
+        mReceived += buffer.remaining();
+        return position;
+    }
+
+    /**
+     * Write a buffer returned by receive(). Only the disk writer calls this, in
+     * order, so the lock isn't held while writing.
+     */
+    void write(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        synchronized (this) {
+            mPosition = position;
+        }
+    }
+}
@@ -0,0 +1,311 @@
+/*
+ * Copyright (C) 2023 The PixelExperience Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixelexperience.ota.download;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+
+/**
+ * Downloads a segment over one connection, then keeps taking over parts of the
+ * slowest ones until there's nothing left worth splitting. Faster mirrors end
+ * up serving more bytes this way. On errors the segment goes on from another
+ * mirror. Callbacks run with the session lock held.
+ */
+final class SegmentWorker implements Transport.Listener {
+
+    private static final String TAG = "SegmentWorker";
+    // Connections averaging less than this over a whole window are moved to another mirror
+    private static final long MIN_MIRROR_SPEED = 64 * 1024;
+    private static final long SLOW_MIRROR_WINDOW_MS = 15000;
+    // Transfers shorter and smaller than this don't tell the throughput of a mirror
+    private static final long MIN_THROUGHPUT_SAMPLE_MS = 2000;
+    private static final long MIN_THROUGHPUT_SAMPLE_BYTES = 1024 * 1024;
+    // Connections receiving less than this over a whole window are considered stalled
+    private static final long STALL_MIN_BYTES = 4 * 1024;
+
+    private final DownloadSession mSession;
+
+    private URL mUrl;
+    Segment mSegment;
+    Transport.Exchange mExchange;
+    long mSampleStart;
+    long mSampleBytes;
+    // Bytes received since mStallWindowStart, to tell stalled connections
+    private long mStallWindowStart;
+    private long mStallWindowBytes;
+    // Failures in a row, and when to reconnect after the last one
+    private int mRetries = 0;
+    private long mRetryAt = 0;
+    // Set if bonded to a network other than the default one
+    DownloadNetwork mBondedNetwork;
+
+    SegmentWorker(DownloadSession session, URL url, Segment segment,
+                  Transport.Exchange exchange) {
+        mSession = session;
+        mUrl = url;
+        mSegment = segment;
+        mExchange = exchange;
+        mSampleStart = mSession.mClock.elapsedRealtime();
+        resetStallWindow();
+    }
+
+    void resetStallWindow() {
+        mStallWindowStart = mSession.mClock.elapsedRealtime();
+        mStallWindowBytes = 0;
+    }
+
+    DownloadNetwork getNetwork() {
+        return mBondedNetwork != null ? mBondedNetwork : mSession.mNetwork;
+    }
+
+    void fetch() {
+        Request request = mSession.newRequest(mUrl);
+        if (mBondedNetwork != null) {
+            request.setNetwork(mBondedNetwork);
+        }
+        mSession.setRangeHeaders(request, mSegment.getRangeHeader());
+        request.setConnectTimeout(DownloadSession.CONNECT_TIMEOUT_MS);
+        resetStallWindow();
+        mExchange = mSession.mTransport.execute(request, this);
+    }
+
+    /**
+     * Reconnect after a failure, right away if moving to another mirror or
+     * after a growing delay otherwise. The range request resumes from what was
+     * received so far. The download fails once the retries are used up.
+     */
+    private void retry(IOException e) {
+        mExchange = null;
+        if (mSession.isNetworkLost(getNetwork())) {
+            Log.d(TAG, "Network lost while downloading from " + mUrl.getHost(), e);
+            mRetryAt = mSession.mClock.elapsedRealtime() + DownloadSession.getRetryDelay(mRetries);
+            return;
+        }
+        if (++mRetries > DownloadSession.MAX_RETRIES || DownloadSession.isPermanentError(e)) {
+            Log.e(TAG, "Error downloading segment from " + mUrl.getHost(), e);
+            mSession.abort(e);
+            return;
+        }
+        URL url = mUrl;
+        try {
+            mUrl = mSession.failover(mUrl, e);
+        } catch (IOException fatal) {
+            Log.e(TAG, "Error downloading segment from " + mUrl.getHost(), fatal);
+            mSession.abort(fatal);
+            return;
+        }
+        if (!mUrl.toString().equals(url.toString())) {
+            fetch();
+            return;
+        }
+        long delay = DownloadSession.getRetryDelay(mRetries);
+        Log.e(TAG, "Reconnecting to " + mUrl.getHost() + " in " + delay + " ms", e);
+        mRetryAt = mSession.mClock.elapsedRealtime() + delay;
+    }
+
+    /**
+     * Add the speed since the sample started to the scorecard, if it lasted
+     * long enough to tell.
+     */
+    private void addThroughputSample(long now) {
+        long millis = now - mSampleStart;
+        // A rate limited download doesn't tell how fast the mirror is
+        if (mSession.mScorecard != null && !mSession.mRateLimiter.isLimited() && millis > 0 &&
+                (millis >= MIN_THROUGHPUT_SAMPLE_MS ||
+                mSampleBytes >= MIN_THROUGHPUT_SAMPLE_BYTES)) {
+            mSession.mScorecard.addThroughput(mUrl.getHost(), mSampleBytes * 1000 / millis);
+        }
+    }
+
+    /**
+     * Drop the connection, and fetch the rest of the segment right away if
+     * there's a network to do so.
+     */
+    void rebind(boolean reconnect) {
+        if (mExchange != null) {
+            mExchange.cancel();
+            mExchange = null;
+        }
+        mRetries = 0;
+        mRetryAt = 0;
+        if (reconnect) {
+            fetch();
+        }
+    }
+
+    void moveToDefaultNetwork() {
+        Log.d(TAG, "Moving connection from network " + mBondedNetwork +
+                " to the default one");
+        mBondedNetwork = null;
+        rebind(mSession.mNetwork != null);
+    }
+
+    /**
+     * @return the bytes to receive over a stall window not to be considered
+     * stalled, which a low rate limit shared by the connections can lower
+     */
+    private long getStallMinBytes() {
+        long rate = mSession.mRateLimiter.getRate();
+        if (rate == 0) {
+            return STALL_MIN_BYTES;
+        }
+        long share = rate * DownloadSession.STALL_WINDOW_MS / 1000 / Math.max(mSession.mWorkers.size(), 1);
+        return Math.min(STALL_MIN_BYTES, share / 2);
+    }
+
+    void check(long now) {
+        if (mRetryAt > 0) {
+            if (now >= mRetryAt) {
+                mRetryAt = 0;
+                fetch();
+            }
+            return;
+        }
+        if (mExchange == null || now - mStallWindowStart < DownloadSession.STALL_WINDOW_MS) {
+            return;
+        }
+        if (mStallWindowBytes < getStallMinBytes()) {
+            // Half-open connections never fail on their own
+            mExchange.cancel();
+            retry(new SocketTimeoutException(mUrl.getHost() + " stalled with " +
+                    mSegment.getUnreceived() + " bytes left in " +
+                    mSegment.getRangeHeader()));
+            return;
+        }
+        resetStallWindow();
+    }
+
+    private void next() {
+        Segment segment = mSession.stealSegment(getNetwork());
+        if (segment != null) {
+            mSegment = segment;
+            fetch();
+            return;
+        }
+        mExchange = null;
+        mSession.mWorkers.remove(this);
+        if (mSession.mWorkers.isEmpty()) {
+            mSession.endTransfer();
+        }
+    }
+
+    @Override
+    public boolean onResponse(Transport.Exchange exchange, Response response) {
+        synchronized (mSession) {
+            if (exchange != mExchange || mSession.isStopped()) {
+                return false;
+            }
+            if (!DownloadSession.isPartialContentCode(response.getCode())) {
+                retry(new HttpStatusException(response.getCode(), "Server replied with " +
+                        response.getCode() + " to a range request"));
+                return false;
+            }
+            mSession.addLatency(response);
+            mSampleStart = mSession.mClock.elapsedRealtime();
+            mSampleBytes = 0;
+            return true;
+        }
+    }
+
+    @Override
+    public void onData(Transport.Exchange exchange, ByteBuffer buffer) {
+        synchronized (mSession) {
+            if (exchange != mExchange || mSession.isStopped() || mSession.mEnded) {
+                mSession.mBufferPool.release(buffer);
+                return;
+            }
+            mSampleBytes += buffer.remaining();
+            mStallWindowBytes += buffer.remaining();
+            DownloadNetwork network = getNetwork();
+            if (network != null) {
+                mSession.getNetworkUsage(network).mBytes += buffer.remaining();
+                if (mSession.mDataBudget != null) {
+                    mSession.mDataBudget.add(network, buffer.remaining());
+                }
+            }
+            mRetries = 0;
+            mSession.clearMirrorFailures(mUrl);
+            long position = mSegment.receive(buffer);
+            if (position >= 0) {
+                mSession.mWriteQueue.add(new Chunk(mSegment, position, buffer));
+            } else {
+                mSession.mBufferPool.release(buffer);
+            }
+            long now = mSession.mClock.elapsedRealtime();
+            if (mSegment.getUnreceived() == 0) {
+                addThroughputSample(now);
+                exchange.cancel();
+                next();
+                return;
+            }
+            if (mBondedNetwork != null && mSession.isOverCap(mBondedNetwork)) {
+                addThroughputSample(now);
+                moveToDefaultNetwork();
+                return;
+            } else if (network != null && network.isMetered() && mSession.isBudgetExhausted()) {
+                Log.d(TAG, "Data budget used up, " + mSession.mDataBudget);
+                addThroughputSample(now);
+                mSession.onNetworksChanged();
+                return;
+            }
+
+            long millis = now - mSampleStart;
+            if (millis >= SLOW_MIRROR_WINDOW_MS) {
+                addThroughputSample(now);
+                long speed = mSampleBytes * 1000 / millis;
+                if (speed < MIN_MIRROR_SPEED && !mSession.mRateLimiter.isLimited() &&
+                        mSession.hasOtherMirror(mUrl)) {
+                    exchange.cancel();
+                    retry(new SlowMirrorException(mUrl.getHost() + " is too slow: " +
+                            speed + " B/s"));
+                    return;
+                }
+                mSampleStart += millis;
+                mSampleBytes = 0;
+            }
+        }
+    }
+
+    @Override
+    public void onComplete(Transport.Exchange exchange) {
+        synchronized (mSession) {
+            if (exchange != mExchange || mSession.isStopped()) {
+                return;
+            }
+            if (mSegment.getUnreceived() > 0) {
+                retry(new IOException("Connection closed with " +
+                        mSegment.getUnreceived() + " bytes left in " +
+                        mSegment.getRangeHeader()));
+                return;
+            }
+            next();
+        }
+    }
+
+    @Override
+    public void onFailure(Transport.Exchange exchange, IOException e) {
+        synchronized (mSession) {
+            if (exchange != mExchange || mSession.isStopped()) {
+                return;
+            }
+            retry(e);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2023 The PixelExperience Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixelexperience.ota.download;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Carries out the HTTP requests of a download. Responses are passed to a listener
+ * as they arrive, so that an implementation is free to serve all the requests
+ * from a single thread. Redirects are never followed.
+ */
+interface Transport {
+
+    /**
+     * Send the request. The listener is called from the threads of the transport,
+     * one call at a time for a given exchange.
+     */
+    Exchange execute(Request request, Listener listener);
+
+    /**
+     * Cancel every exchange and release the threads of the transport.
+     */
+    void shutdown();
+
+    interface Exchange {
+        /**
+         * Close the connection. The listener isn't called anymore once this returns,
+         * unless it is the one calling.
+         */
+        void cancel();
+    }
+
+    interface Listener {
+        /**
+         * @return whether to read the body. If not, the exchange ends here.
+         */
+        boolean onResponse(Exchange exchange, Response response);
+
+        /**
+         * Part of the body, in a buffer from the pool of the transport. The listener
+         * gives it back to the pool once done with it.
+         */
+        void onData(Exchange exchange, ByteBuffer buffer);
+
+        void onComplete(Exchange exchange);
+
+        void onFailure(Exchange exchange, IOException e);
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2023 The PixelExperience Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixelexperience.ota.download;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Transport using HttpURLConnection, with a blocking thread per exchange.
+ */
+class UrlConnectionTransport implements Transport {
+
+    // Chunks passed to the listener hold about CHUNK_DURATION_MS of the throughput
+    // of the connection
+    private static final int MIN_CHUNK_SIZE = 16 * 1024;
+    private static final long CHUNK_DURATION_MS = 50;
+
+    private final BufferPool mBufferPool;
+    private final RateLimiter mRateLimiter;
+    private final Clock mClock;
+    private final Set<UrlExchange> mExchanges = ConcurrentHashMap.newKeySet();
+
+    UrlConnectionTransport(BufferPool bufferPool, RateLimiter rateLimiter, Clock clock) {
+        mBufferPool = bufferPool;
+        mRateLimiter = rateLimiter;
+        mClock = clock;
+    }
+
+    @Override
+    public Exchange execute(Request request, Listener listener) {
+        UrlExchange exchange = new UrlExchange(request, listener);
+        mExchanges.add(exchange);
+        exchange.start();
+        return exchange;
+    }
+
+    @Override
+    public void shutdown() {
+        for (UrlExchange exchange : mExchanges) {
+            exchange.cancel();
+        }
+    }
+
+    private class UrlExchange extends Thread implements Exchange {
+
+        private final Request mRequest;
+        private final Listener mListener;
+        private volatile boolean mCancelled = false;
+        private volatile HttpURLConnection mConnection;
+
+        private UrlExchange(Request request, Listener listener) {
+            mRequest = request;
+            mListener = listener;
+        }
+
+        @Override
+        public void cancel() {
+            mCancelled = true;
+            HttpURLConnection connection = mConnection;
+            if (connection == null) {
+                return;
+            }
+            // Unblocks the read in progress, if any. Disconnecting can write to the
+            // socket, which isn't allowed on the main thread.
+            if (Thread.currentThread() == this) {
+                connection.disconnect();
+            } else {
+                new Thread(connection::disconnect).start();
+            }
+        }
+
+        /**
+         * @return a buffer to read into once one was given back, or null if the
+         * exchange was cancelled meanwhile
+         */
+        private ByteBuffer takeBuffer() throws IOException {
+            try {
+                ByteBuffer buffer;
+                while ((buffer = mBufferPool.poll(100)) == null) {
+                    if (mCancelled) {
+                        return null;
+                    }
+                }
+                return buffer;
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while waiting for a buffer");
+            }
+        }
+
+        /**
+         * @return how many bytes, up to max, the rate limit allows to read, or 0 if
+         * the exchange was cancelled while waiting
+         */
+        private int takeAllowance(int max) throws IOException {
+            try {
+                int allowance;
+                while ((allowance = mRateLimiter.getAllowance(max, 100)) == 0) {
+                    if (mCancelled) {
+                        return 0;
+                    }
+                }
+                return allowance;
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while rate limited");
+            }
+        }
+
+        private void readBody(InputStream inputStream) throws IOException {
+            ReadableByteChannel in = Channels.newChannel(inputStream);
+            int chunkSize = MIN_CHUNK_SIZE;
+            boolean eof = false;
+            while (!eof && !mCancelled) {
+                ByteBuffer buffer = takeBuffer();
+                if (buffer == null) {
+                    return;
+                }
+                long chunkStart = mClock.elapsedRealtime();
+                try {
+                    buffer.limit(Math.min(chunkSize, buffer.capacity()));
+                    while (buffer.hasRemaining() && !mCancelled) {
+                        int limit = buffer.limit();
+                        int allowance = takeAllowance(buffer.remaining());
+                        if (allowance == 0) {
+                            break;
+                        }
+                        buffer.limit(buffer.position() + allowance);
+                        int read = in.read(buffer);
+                        buffer.limit(limit);
+                        if (read < 0) {
+                            eof = true;
+                            break;
+                        }
+                        mRateLimiter.consume(read);
+                    }
+                    buffer.flip();
+                    if (buffer.hasRemaining() && !mCancelled) {
+                        ByteBuffer data = buffer;
+                        buffer = null;
+                        mListener.onData(this, data);
+                    }
+                } finally {
+                    if (buffer != null) {
+                        mBufferPool.release(buffer);
+                    }
+                }
+
+                // Fewer, larger chunks on fast connections, smoother progress on slow ones
+                long millis = mClock.elapsedRealtime() - chunkStart;
+                if (millis < CHUNK_DURATION_MS / 2) {
+                    chunkSize = Math.min(chunkSize * 2, mBufferPool.getBufferSize());
+                } else if (millis > CHUNK_DURATION_MS * 2) {
+                    chunkSize = Math.max(chunkSize / 2, MIN_CHUNK_SIZE);
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                long start = mClock.elapsedRealtime();
+                DownloadNetwork network = mRequest.getNetwork();
+                HttpURLConnection connection = (HttpURLConnection) (network != null ?
+                        network.openConnection(mRequest.getUrl()) :
+                        mRequest.getUrl().openConnection());
+                mConnection = connection;
+                if (mCancelled) {
+                    return;
+                }
+                connection.setInstanceFollowRedirects(false);
+                connection.setConnectTimeout(mRequest.getConnectTimeout());
+                for (Map.Entry<String, String> header : mRequest.getHeaders().entrySet()) {
+                    connection.setRequestProperty(header.getKey(), header.getValue());
+                }
+                connection.connect();
+                long connected = mClock.elapsedRealtime();
+                int code = connection.getResponseCode();
+                Response response = new Response(mRequest.getUrl(), code,
+                        connection.getHeaderFields(), connected - start,
+                        mClock.elapsedRealtime() - connected);
+                if (mCancelled || !mListener.onResponse(this, response) || mCancelled) {
+                    return;
+                }
+                try (InputStream inputStream = connection.getInputStream()) {
+                    readBody(inputStream);
+                }
+                if (!mCancelled) {
+                    mListener.onComplete(this);
+                }
+            } catch (IOException e) {
+                if (!mCancelled) {
+                    mListener.onFailure(this, e);
+                }
+            } finally {
+                HttpURLConnection connection = mConnection;
+                if (connection != null) {
+                    connection.disconnect();
+                }
+                mExchanges.remove(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2023 The PixelExperience Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixelexperience.ota.download;
+
+/**
+ * Looks after the connections of a session every WATCHDOG_INTERVAL_MS, and saves
+ * the data budget now and then.
+ */
+final class WatchdogThread extends Thread {
+
+    private static final long WATCHDOG_INTERVAL_MS = 500;
+    // How often the data budget is written while downloading, at most
+    private static final long DATA_BUDGET_INTERVAL_MS = 10000;
+
+    private final DownloadSession mSession;
+
+    WatchdogThread(DownloadSession session) {
+        mSession = session;
+    }
+
+    @Override
+    public void run() {
+        long lastBudgetSave = mSession.mClock.elapsedRealtime();
+        while (true) {
+            try {
+                Thread.sleep(WATCHDOG_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            synchronized (mSession) {
+                if (mSession.mEnded || mSession.isStopped()) {
+                    return;
+                }
+                mSession.checkConnections();
+            }
+            // So that little is forgotten if the process dies
+            long now = mSession.mClock.elapsedRealtime();
+            if (mSession.mDataBudget != null && now - lastBudgetSave >= DATA_BUDGET_INTERVAL_MS) {
+                mSession.mDataBudget.save();
+                lastBudgetSave = now;
+            }
+        }
+    }
+}
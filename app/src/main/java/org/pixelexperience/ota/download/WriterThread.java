@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2023 The PixelExperience Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixelexperience.ota.download;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes what the connections of a session read, and passes what is contiguous
+ * on disk to the content listener in order. Reports the outcome of the session
+ * once everything was written.
+ */
+final class WriterThread extends Thread {
+
+    private static final String TAG = "WriterThread";
+    // Bytes written ahead by other connections are read back in chunks of this size
+    private static final int CONTENT_BUFFER_SIZE = 64 * 1024;
+
+    private final DownloadSession mSession;
+    private final DownloadClient.ContentListener mContentListener;
+    private long mContentPosition = 0;
+    private ByteBuffer mContentBuffer;
+
+    WriterThread(DownloadSession session, DownloadClient.ContentListener contentListener) {
+        mSession = session;
+        mContentListener = contentListener;
+    }
+
+    @Override
+    public void run() {
+        IOException error = null;
+        try {
+            // Nothing to write if the download stopped before the transfer
+            if (mSession.mWriteQueue.take() == mSession.mStartOfTransfer) {
+                try {
+                    catchUpContent(mSession.mChannel);
+                    writeChunks(mSession.mChannel);
+                    catchUpContent(mSession.mChannel);
+                } finally {
+                    if (!mSession.checkpoint(mSession.mChannel, true)) {
+                        // Drop whatever isn't contiguous, resuming only appends
+                        // to the file
+                        mSession.mChannel.truncate(mSession.getContiguousLength());
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            error = new InterruptedIOException("Interrupted while writing");
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing " + mSession.mDestination, e);
+            error = e;
+        }
+        if (error != null) {
+            mSession.abort(error);
+        }
+        mSession.finish(error);
+    }
+
+    /**
+     * Pass [mContentPosition, end) to the content listener, reading it back from
+     * the destination file. Gives up once the download stopped, catching up with
+     * a large resume can take a while.
+     */
+    private void readContent(FileChannel channel, long end) throws IOException {
+        if (mContentBuffer == null) {
+            mContentBuffer = ByteBuffer.allocate(CONTENT_BUFFER_SIZE);
+        }
+        while (mContentPosition < end && !mSession.isStopped()) {
+            mContentBuffer.clear();
+            mContentBuffer.limit((int) Math.min(CONTENT_BUFFER_SIZE, end - mContentPosition));
+            int read = channel.read(mContentBuffer, mContentPosition);
+            if (read <= 0) {
+                throw new IOException("Could not read back " + mSession.mDestination);
+            }
+            mContentBuffer.flip();
+            mContentListener.update(mContentBuffer);
+            mContentPosition += read;
+        }
+    }
+
+    /**
+     * Feed the chunk just written at the given position if it directly follows what
+     * the content listener has seen, then catch up with whatever the other
+     * connections wrote past it. That data was just written, so it is normally
+     * read back from the page cache.
+     */
+    private void updateContent(FileChannel channel, long position, ByteBuffer content)
+            throws IOException {
+        if (mContentListener == null) {
+            return;
+        }
+        if (position == mContentPosition) {
+            int count = content.remaining();
+            mContentListener.update(content);
+            mContentPosition += count;
+        }
+        readContent(channel, mSession.getContiguousLength());
+    }
+
+    /**
+     * Pass everything contiguous on disk to the content listener. Before the transfer
+     * this is the part of the file a resume starts from.
+     */
+    private void catchUpContent(FileChannel channel) throws IOException {
+        if (mContentListener == null) {
+            return;
+        }
+        readContent(channel, mSession.getContiguousLength());
+    }
+
+    /**
+     * Write what the connections read, in the order they queued it. Runs on its
+     * own thread so that a slow disk doesn't stop the sockets from being drained
+     * until the buffers run out.
+     */
+    private void writeChunks(FileChannel channel) throws IOException {
+        try {
+            Chunk chunk;
+            while ((chunk = mSession.mWriteQueue.take()) != mSession.mEndOfTransfer) {
+                try {
+                    ByteBuffer content = chunk.mBuffer.duplicate();
+                    int count = chunk.mBuffer.remaining();
+                    chunk.mSegment.write(channel, chunk.mBuffer, chunk.mPosition);
+                    updateContent(channel, chunk.mPosition, content);
+                    mSession.onBytesWritten(count);
+                    mSession.checkpoint(channel, false);
+                } finally {
+                    mSession.mBufferPool.release(chunk.mBuffer);
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while writing");
+        }
+    }
+}
@@ -30,6 +30,16 @@ public final class Constants {
     static final String PROP_AB_DEVICE = "ro.build.ab_update";
     static final String PROP_DEVICE = "org.pixelexperience.device";
     static final String PROP_BUILD_VERSION = "org.pixelexperience.version";
+    static final String PROP_NIO_DOWNLOAD = "persist.sys.ota.nio_download";
+    static final String PROP_SOFT_PAUSE_MS = "persist.sys.ota.soft_pause_ms";
+    static final String PROP_NETWORK_BONDING = "persist.sys.ota.network_bonding";
+    static final String PROP_METERED_BONDING_CAP_MB = "persist.sys.ota.metered_bonding_cap_mb";
+    static final String PROP_METERED_BUDGET_MB = "persist.sys.ota.metered_budget_mb";
+    static final String PROP_BILLING_DAY = "persist.sys.ota.billing_day";
+    static final String PROP_RATE_LIMIT_FOREGROUND_KBPS = "persist.sys.ota.rate_limit_fg_kbps";
+    static final String PROP_RATE_LIMIT_BACKGROUND_KBPS = "persist.sys.ota.rate_limit_bg_kbps";
+    static final String PROP_THROTTLED_RATE_LIMIT_KBPS = "persist.sys.ota.throttled_rate_limit_kbps";
+    static final String PROP_STREAMING_INSTALL = "persist.sys.ota.streaming_install";
     static final String OTA_URL = "https://api.pixelexperience.org/ota/%s/%s";
     static final String OTA_CI_URL = "https://api.pixelexperience.org/ota_ci/%s/%s";
     static final String MAINTAINER_URL = "https://download.pixelexperience.org/team/%s";
@@ -118,6 +118,22 @@ public class FileUtils {
         }
     }
 
+    /**
+     * Copy the file while feeding it to the given verifier, which must not have
+     * been fed anything yet.
+     */
+    public static void copyFile(ContentResolver cr, File sourceFile, Uri destUri,
+                                PackageVerifier verifier, ProgressCallBack progressCallBack)
+            throws IOException {
+        try (ParcelFileDescriptor pfd = cr.openFileDescriptor(destUri, "w");
+             FileChannel destChannel = new FileOutputStream(pfd.getFileDescriptor()).getChannel()) {
+            verifier.update(sourceFile, destChannel, progressCallBack);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not copy file", e);
+            throw e;
+        }
+    }
+
     public static String queryName(@NonNull ContentResolver resolver, Uri uri) {
         try (Cursor returnCursor = resolver.query(uri, null, null, null, null)) {
             returnCursor.moveToFirst();
@@ -0,0 +1,487 @@
+/*
+ * Copyright (C) 2023 The PixelExperience Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixelexperience.ota.misc;
+
+import android.util.Log;
+
+import org.pixelexperience.ota.download.DownloadClient;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Hashes an update package in a single pass, fed in order either by the download
+ * or by reading the file. Besides the hash of the whole package (MD5, or SHA-256
+ * when the expected hash is one), the local headers of the zip are followed so
+ * that payload.bin can be checked against the FILE_HASH of payload_properties.txt
+ * on A/B packages.
+ * <p>
+ * A verifier created as checkpointable can save everything, digests included, so
+ * that a verification interrupted by the process being killed goes on from where
+ * it stopped. It hashes with {@link ResumableDigest}, which is slower than the
+ * platform digests, so it's only meant for reading the package back from storage.
+ */
+public class PackageVerifier implements DownloadClient.ContentListener {
+
+    private static final String TAG = "PackageVerifier";
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final int MAX_PROPERTIES_SIZE = 64 * 1024;
+
+    private static final int READ_BUFFER_SIZE = 1024 * 1024;
+    private static final int READ_BUFFERS = 2;
+    private static final ByteBuffer END_OF_FILE = ByteBuffer.allocate(0);
+
+    private static final long CHECKPOINT_INTERVAL = 64 * 1024 * 1024;
+    private static final int CHECKPOINT_VERSION = 3;
+
+    private static final int STATE_HEADER = 0;
+    private static final int STATE_NAME_EXTRA = 1;
+    private static final int STATE_DATA = 2;
+    private static final int STATE_DONE = 3;
+
+    private final String mAlgorithm;
+    private final boolean mCheckpointable;
+    private final MessageDigest mDigest;
+    private final MessageDigest mPayloadDigest;
+    private long mLength;
+
+    private int mState = STATE_HEADER;
+    private final ByteArrayOutputStream mHeader = new ByteArrayOutputStream();
+    private int mNameExtraSize;
+    private String mEntryName;
+    private boolean mEntryStored;
+    private long mEntryRemaining;
+    private long mPayloadOffset = -1;
+    private long mPayloadSize = -1;
+    private byte[] mPayloadHash;
+    private final ByteArrayOutputStream mProperties = new ByteArrayOutputStream();
+    private boolean mHasProperties;
+
+    private CheckpointListener mCheckpointListener;
+
+    public PackageVerifier() {
+        this(null);
+    }
+
+    /**
+     * @param hash the expected hash of the package, used to pick the algorithm
+     */
+    public PackageVerifier(String hash) {
+        this(hash, false);
+    }
+
+    /**
+     * @param hash the expected hash of the package, used to pick the algorithm
+     * @param checkpointable whether {@link #writeCheckpoint(DataOutputStream)} can be used
+     */
+    public PackageVerifier(String hash, boolean checkpointable) {
+        mAlgorithm = hash != null && hash.length() == 64 ? "SHA-256" : "MD5";
+        mCheckpointable = checkpointable;
+        if (checkpointable) {
+            mDigest = ResumableDigest.getResumableInstance(mAlgorithm);
+            mPayloadDigest = ResumableDigest.getResumableInstance("SHA-256");
+            return;
+        }
+        try {
+            mDigest = MessageDigest.getInstance(mAlgorithm);
+            mPayloadDigest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public boolean isCheckpointable() {
+        return mCheckpointable;
+    }
+
+    public synchronized long getLength() {
+        return mLength;
+    }
+
+    @Override
+    public synchronized void update(ByteBuffer content) {
+        long offset = mLength - content.position();
+        mLength += content.remaining();
+        ByteBuffer zip = content.duplicate();
+        mDigest.update(content);
+        while (zip.hasRemaining() && mState != STATE_DONE) {
+            switch (mState) {
+                case STATE_HEADER:
+                    collect(zip, LOCAL_HEADER_SIZE);
+                    if (mHeader.size() == LOCAL_HEADER_SIZE) {
+                        parseLocalHeader();
+                    }
+                    break;
+                case STATE_NAME_EXTRA:
+                    collect(zip, LOCAL_HEADER_SIZE + mNameExtraSize);
+                    if (mHeader.size() == LOCAL_HEADER_SIZE + mNameExtraSize) {
+                        parseNameExtra(offset + zip.position());
+                    }
+                    break;
+                case STATE_DATA:
+                    updateEntry(zip);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Feed the content of the given file, starting from where the previous
+     * updates stopped.
+     */
+    public void update(File file, FileUtils.ProgressCallBack callback) throws IOException {
+        update(file, null, callback);
+    }
+
+    /**
+     * Feed the content of the given file, starting from where the previous
+     * updates stopped, and write everything that is read to copyTo if not null.
+     * The file is read by a separate thread into a pair of large buffers, so that
+     * reading the next buffer overlaps with hashing the current one.
+     */
+    public void update(File file, WritableByteChannel copyTo,
+                       FileUtils.ProgressCallBack callback) throws IOException {
+        try (FileChannel channel = new FileInputStream(file).getChannel()) {
+            final long size = channel.size();
+            final long start = getLength();
+            final BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<>(READ_BUFFERS);
+            final BlockingQueue<ByteBuffer> full = new ArrayBlockingQueue<>(READ_BUFFERS + 1);
+            final IOException[] readError = new IOException[1];
+            for (int i = 0; i < READ_BUFFERS; i++) {
+                free.add(ByteBuffer.allocate(READ_BUFFER_SIZE));
+            }
+            Thread reader = new Thread(() -> {
+                long position = start;
+                try {
+                    while (true) {
+                        ByteBuffer buffer = free.take();
+                        buffer.clear();
+                        int read = channel.read(buffer, position);
+                        if (read < 0) {
+                            break;
+                        }
+                        position += read;
+                        buffer.flip();
+                        full.put(buffer);
+                    }
+                } catch (IOException e) {
+                    readError[0] = e;
+                } catch (InterruptedException e) {
+                    return;
+                }
+                full.add(END_OF_FILE);
+            });
+            reader.start();
+            try {
+                long read = start;
+                long checkpoint = start;
+                int progress = -1;
+                while (true) {
+                    ByteBuffer buffer = full.take();
+                    if (buffer == END_OF_FILE) {
+                        break;
+                    }
+                    if (copyTo != null) {
+                        ByteBuffer copy = buffer.duplicate();
+                        while (copy.hasRemaining()) {
+                            copyTo.write(copy);
+                        }
+                    }
+                    read += buffer.remaining();
+                    update(buffer);
+                    free.add(buffer);
+                    if (mCheckpointListener != null && read - checkpoint >= CHECKPOINT_INTERVAL) {
+                        mCheckpointListener.onCheckpoint(this);
+                        checkpoint = read;
+                    }
+                    if (callback != null && size > 0) {
+                        int newProgress = Math.round(read * 100.f / size);
+                        if (newProgress != progress) {
+                            progress = newProgress;
+                            callback.update(progress);
+                        }
+                    }
+                }
+                if (readError[0] != null) {
+                    throw readError[0];
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            } finally {
+                reader.interrupt();
+                try {
+                    reader.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * Get called every {@link #CHECKPOINT_INTERVAL} bytes read by
+     * {@link #update(File, FileUtils.ProgressCallBack)}. Only for checkpointable verifiers.
+     */
+    public void setCheckpointListener(CheckpointListener listener) {
+        if (!mCheckpointable) {
+            throw new IllegalStateException("Not a checkpointable verifier");
+        }
+        mCheckpointListener = listener;
+    }
+
+    public synchronized String getHash() {
+        byte[] hash;
+        try {
+            hash = ((MessageDigest) mDigest.clone()).digest();
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+        BigInteger bigInt = new BigInteger(1, hash);
+        // Fill to 32 or 64 chars
+        return String.format("%" + hash.length * 2 + "s", bigInt.toString(16)).replace(' ', '0');
+    }
+
+    /**
+     * Check the hash of everything fed so far and, if the package carries one, the
+     * payload against its properties.
+     */
+    public synchronized boolean verify(String hash) {
+        if (!getHash().equalsIgnoreCase(hash)) {
+            Log.e(TAG, "Package hash mismatch");
+            return false;
+        }
+        if (mPayloadHash == null || !mHasProperties) {
+            return true;
+        }
+        String fileHash = null;
+        long fileSize = -1;
+        String properties = new String(mProperties.toByteArray(), StandardCharsets.UTF_8);
+        for (String line : properties.split("\n")) {
+            if (line.startsWith("FILE_HASH=")) {
+                fileHash = line.substring("FILE_HASH=".length()).trim();
+            } else if (line.startsWith("FILE_SIZE=")) {
+                try {
+                    fileSize = Long.parseLong(line.substring("FILE_SIZE=".length()).trim());
+                } catch (NumberFormatException e) {
+                    Log.e(TAG, "Invalid payload size", e);
+                }
+            }
+        }
+        if (fileSize >= 0 && fileSize != mPayloadSize) {
+            Log.e(TAG, "Payload size mismatch");
+            return false;
+        }
+        if (fileHash != null &&
+                !fileHash.equals(Base64.getEncoder().encodeToString(mPayloadHash))) {
+            Log.e(TAG, "Payload hash mismatch");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Save the position, the state of the digests and the zip parser state.
+     */
+    public synchronized void writeCheckpoint(DataOutputStream out) throws IOException {
+        if (!mCheckpointable) {
+            throw new IllegalStateException("Not a checkpointable verifier");
+        }
+        out.writeInt(CHECKPOINT_VERSION);
+        out.writeUTF(mAlgorithm);
+        out.writeLong(mLength);
+        writeBytes(out, ((ResumableDigest) mDigest).getState());
+        writeBytes(out, ((ResumableDigest) mPayloadDigest).getState());
+        out.writeInt(mState);
+        writeBytes(out, mHeader.toByteArray());
+        out.writeInt(mNameExtraSize);
+        out.writeUTF(mEntryName != null ? mEntryName : "");
+        out.writeBoolean(mEntryStored);
+        out.writeLong(mEntryRemaining);
+        out.writeLong(mPayloadOffset);
+        out.writeLong(mPayloadSize);
+        writeBytes(out, mPayloadHash != null ? mPayloadHash : new byte[0]);
+        writeBytes(out, mProperties.toByteArray());
+        out.writeBoolean(mHasProperties);
+    }
+
+    /**
+     * Restore a checkpointable verifier saved with {@link #writeCheckpoint(DataOutputStream)}.
+     * Feeding it the file with {@link #update(File, FileUtils.ProgressCallBack)} goes
+     * on from where the checkpoint was taken.
+     */
+    public static PackageVerifier readCheckpoint(DataInputStream in, String hash)
+            throws IOException {
+        PackageVerifier verifier = new PackageVerifier(hash, true);
+        if (in.readInt() != CHECKPOINT_VERSION || !verifier.mAlgorithm.equals(in.readUTF())) {
+            throw new IOException("Incompatible checkpoint");
+        }
+        verifier.mLength = in.readLong();
+        try {
+            ((ResumableDigest) verifier.mDigest).setState(readBytes(in));
+            ((ResumableDigest) verifier.mPayloadDigest).setState(readBytes(in));
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid checkpoint", e);
+        }
+        verifier.mState = in.readInt();
+        verifier.mHeader.write(readBytes(in));
+        verifier.mNameExtraSize = in.readInt();
+        verifier.mEntryName = in.readUTF();
+        verifier.mEntryStored = in.readBoolean();
+        verifier.mEntryRemaining = in.readLong();
+        verifier.mPayloadOffset = in.readLong();
+        verifier.mPayloadSize = in.readLong();
+        byte[] payloadHash = readBytes(in);
+        verifier.mPayloadHash = payloadHash.length > 0 ? payloadHash : null;
+        verifier.mProperties.write(readBytes(in));
+        verifier.mHasProperties = in.readBoolean();
+        if (verifier.mLength < 0 || verifier.mState < STATE_HEADER ||
+                verifier.mState > STATE_DONE) {
+            throw new IOException("Invalid checkpoint");
+        }
+        return verifier;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_PROPERTIES_SIZE) {
+            throw new IOException("Invalid checkpoint");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static void copy(ByteBuffer from, ByteArrayOutputStream to, int count) {
+        byte[] bytes = new byte[count];
+        from.get(bytes);
+        to.write(bytes, 0, count);
+    }
+
+    private void collect(ByteBuffer zip, int size) {
+        copy(zip, mHeader, Math.min(zip.remaining(), size - mHeader.size()));
+    }
+
+    private void parseLocalHeader() {
+        ByteBuffer header = ByteBuffer.wrap(mHeader.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+        if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+            // Central directory, nothing else to look at
+            mState = STATE_DONE;
+            return;
+        }
+        int flags = header.getShort(6) & 0xffff;
+        if ((flags & 0x08) != 0) {
+            // Sizes are in a data descriptor after the data, can't follow the entries
+            Log.d(TAG, "Found streamed zip entry, not following further entries");
+            mState = STATE_DONE;
+            return;
+        }
+        mEntryStored = header.getShort(8) == 0;
+        mEntryRemaining = header.getInt(18) & 0xffffffffL;
+        mNameExtraSize = (header.getShort(26) & 0xffff) + (header.getShort(28) & 0xffff);
+        mState = STATE_NAME_EXTRA;
+    }
+
+    /**
+     * @param dataOffset where the data of the entry starts in the package
+     */
+    private void parseNameExtra(long dataOffset) {
+        ByteBuffer header = ByteBuffer.wrap(mHeader.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+        int nameLength = header.getShort(26) & 0xffff;
+        int extraLength = header.getShort(28) & 0xffff;
+        mEntryName = new String(mHeader.toByteArray(), LOCAL_HEADER_SIZE, nameLength,
+                StandardCharsets.UTF_8);
+        if (mEntryRemaining == 0xffffffffL) {
+            // Zip64, the sizes are in the extra field
+            int offset = LOCAL_HEADER_SIZE + nameLength;
+            int end = offset + extraLength;
+            while (offset + 4 <= end) {
+                int id = header.getShort(offset) & 0xffff;
+                int size = header.getShort(offset + 2) & 0xffff;
+                if (id == ZIP64_EXTRA_ID && size >= 16) {
+                    mEntryRemaining = header.getLong(offset + 12);
+                    break;
+                }
+                offset += 4 + size;
+            }
+        }
+        mHeader.reset();
+        if (Constants.AB_PAYLOAD_BIN_PATH.equals(mEntryName) && mEntryStored) {
+            mPayloadOffset = dataOffset;
+            mPayloadSize = mEntryRemaining;
+            mPayloadDigest.reset();
+        } else if (Constants.AB_PAYLOAD_PROPERTIES_PATH.equals(mEntryName) && mEntryStored) {
+            mProperties.reset();
+        }
+        mState = mEntryRemaining > 0 ? STATE_DATA : STATE_HEADER;
+        if (mState == STATE_HEADER) {
+            finishEntry();
+        }
+    }
+
+    private void updateEntry(ByteBuffer zip) {
+        int count = (int) Math.min(zip.remaining(), mEntryRemaining);
+        ByteBuffer data = zip.duplicate();
+        data.limit(data.position() + count);
+        if (Constants.AB_PAYLOAD_BIN_PATH.equals(mEntryName) && mEntryStored) {
+            mPayloadDigest.update(data);
+        } else if (Constants.AB_PAYLOAD_PROPERTIES_PATH.equals(mEntryName) && mEntryStored &&
+                mProperties.size() + count <= MAX_PROPERTIES_SIZE) {
+            copy(data, mProperties, count);
+        }
+        zip.position(zip.position() + count);
+        mEntryRemaining -= count;
+        if (mEntryRemaining == 0) {
+            finishEntry();
+            mState = STATE_HEADER;
+        }
+    }
+
+    private void finishEntry() {
+        if (Constants.AB_PAYLOAD_BIN_PATH.equals(mEntryName) && mEntryStored) {
+            mPayloadHash = mPayloadDigest.digest();
+        } else if (Constants.AB_PAYLOAD_PROPERTIES_PATH.equals(mEntryName) && mEntryStored) {
+            mHasProperties = true;
+        }
+    }
+
+    public interface CheckpointListener {
+        void onCheckpoint(PackageVerifier verifier);
+    }
+}
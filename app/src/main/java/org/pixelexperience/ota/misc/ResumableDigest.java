@@ -0,0 +1,378 @@
+/*
+ * Copyright (C) 2023 The PixelExperience Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixelexperience.ota.misc;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+
+/**
+ * MD5 and SHA-256 whose intermediate state can be saved and restored, which the
+ * platform digests don't allow. Slower than those, so only used where hashing has
+ * to be picked up where it was left after the process is killed.
+ */
+abstract class ResumableDigest extends MessageDigest {
+
+    private static final int BLOCK_SIZE = 64;
+
+    private final int[] mState;
+    private final byte[] mBlock = new byte[BLOCK_SIZE];
+    private long mCount;
+
+    private ResumableDigest(String algorithm, int words) {
+        super(algorithm);
+        mState = new int[words];
+        engineReset();
+    }
+
+    static ResumableDigest getResumableInstance(String algorithm) {
+        if ("MD5".equals(algorithm)) {
+            return new Md5();
+        } else if ("SHA-256".equals(algorithm)) {
+            return new Sha256();
+        }
+        throw new IllegalArgumentException("Unsupported algorithm " + algorithm);
+    }
+
+    abstract void init(int[] state);
+
+    abstract void transform(int[] state, byte[] block, int offset);
+
+    abstract boolean isBigEndian();
+
+    @Override
+    protected void engineReset() {
+        init(mState);
+        mCount = 0;
+    }
+
+    @Override
+    protected int engineGetDigestLength() {
+        return mState.length * 4;
+    }
+
+    @Override
+    protected void engineUpdate(byte input) {
+        engineUpdate(new byte[]{input}, 0, 1);
+    }
+
+    @Override
+    protected void engineUpdate(byte[] input, int offset, int length) {
+        int index = (int) (mCount % BLOCK_SIZE);
+        mCount += length;
+        if (index > 0) {
+            int fill = Math.min(BLOCK_SIZE - index, length);
+            System.arraycopy(input, offset, mBlock, index, fill);
+            offset += fill;
+            length -= fill;
+            if (index + fill < BLOCK_SIZE) {
+                return;
+            }
+            transform(mState, mBlock, 0);
+        }
+        while (length >= BLOCK_SIZE) {
+            transform(mState, input, offset);
+            offset += BLOCK_SIZE;
+            length -= BLOCK_SIZE;
+        }
+        System.arraycopy(input, offset, mBlock, 0, length);
+    }
+
+    @Override
+    protected void engineUpdate(ByteBuffer input) {
+        if (input.hasArray()) {
+            engineUpdate(input.array(), input.arrayOffset() + input.position(),
+                    input.remaining());
+            input.position(input.limit());
+            return;
+        }
+        byte[] buffer = new byte[Math.min(input.remaining(), 8192)];
+        while (input.hasRemaining()) {
+            int count = Math.min(input.remaining(), buffer.length);
+            input.get(buffer, 0, count);
+            engineUpdate(buffer, 0, count);
+        }
+    }
+
+    @Override
+    protected byte[] engineDigest() {
+        int[] state = mState.clone();
+        byte[] padding = new byte[BLOCK_SIZE * 2];
+        int index = (int) (mCount % BLOCK_SIZE);
+        System.arraycopy(mBlock, 0, padding, 0, index);
+        padding[index] = (byte) 0x80;
+        int length = index < BLOCK_SIZE - 8 ? BLOCK_SIZE : BLOCK_SIZE * 2;
+        long bits = mCount << 3;
+        for (int i = 0; i < 8; i++) {
+            int shift = isBigEndian() ? 56 - 8 * i : 8 * i;
+            padding[length - 8 + i] = (byte) (bits >>> shift);
+        }
+        for (int offset = 0; offset < length; offset += BLOCK_SIZE) {
+            transform(state, padding, offset);
+        }
+        byte[] digest = new byte[state.length * 4];
+        for (int i = 0; i < digest.length; i++) {
+            int shift = isBigEndian() ? 24 - 8 * (i % 4) : 8 * (i % 4);
+            digest[i] = (byte) (state[i / 4] >>> shift);
+        }
+        engineReset();
+        return digest;
+    }
+
+    @Override
+    public Object clone() {
+        ResumableDigest digest = getResumableInstance(getAlgorithm());
+        digest.setState(getState());
+        return digest;
+    }
+
+    byte[] getState() {
+        ByteBuffer state = ByteBuffer.allocate(8 + mState.length * 4 + BLOCK_SIZE);
+        state.putLong(mCount);
+        for (int word : mState) {
+            state.putInt(word);
+        }
+        state.put(mBlock);
+        return state.array();
+    }
+
+    void setState(byte[] state) {
+        if (state.length != 8 + mState.length * 4 + BLOCK_SIZE) {
+            throw new IllegalArgumentException("Invalid state");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(state);
+        mCount = buffer.getLong();
+        for (int i = 0; i < mState.length; i++) {
+            mState[i] = buffer.getInt();
+        }
+        buffer.get(mBlock);
+    }
+
+    private static class Md5 extends ResumableDigest {
+
+        private final int[] mWords = new int[16];
+
+        private Md5() {
+            super("MD5", 4);
+        }
+
+        private static int ff(int a, int b, int c, int d, int x, int s, int t) {
+            return b + Integer.rotateLeft(a + ((b & c) | (~b & d)) + x + t, s);
+        }
+
+        private static int gg(int a, int b, int c, int d, int x, int s, int t) {
+            return b + Integer.rotateLeft(a + ((b & d) | (c & ~d)) + x + t, s);
+        }
+
+        private static int hh(int a, int b, int c, int d, int x, int s, int t) {
+            return b + Integer.rotateLeft(a + (b ^ c ^ d) + x + t, s);
+        }
+
+        private static int ii(int a, int b, int c, int d, int x, int s, int t) {
+            return b + Integer.rotateLeft(a + (c ^ (b | ~d)) + x + t, s);
+        }
+
+        @Override
+        void init(int[] state) {
+            state[0] = 0x67452301;
+            state[1] = 0xefcdab89;
+            state[2] = 0x98badcfe;
+            state[3] = 0x10325476;
+        }
+
+        @Override
+        boolean isBigEndian() {
+            return false;
+        }
+
+        @Override
+        void transform(int[] state, byte[] block, int offset) {
+            int[] x = mWords;
+            for (int i = 0; i < 16; i++) {
+                int j = offset + i * 4;
+                x[i] = (block[j] & 0xff) | (block[j + 1] & 0xff) << 8 |
+                        (block[j + 2] & 0xff) << 16 | (block[j + 3] & 0xff) << 24;
+            }
+            int a = state[0];
+            int b = state[1];
+            int c = state[2];
+            int d = state[3];
+
+            a = ff(a, b, c, d, x[0], 7, 0xd76aa478);
+            d = ff(d, a, b, c, x[1], 12, 0xe8c7b756);
+            c = ff(c, d, a, b, x[2], 17, 0x242070db);
+            b = ff(b, c, d, a, x[3], 22, 0xc1bdceee);
+            a = ff(a, b, c, d, x[4], 7, 0xf57c0faf);
+            d = ff(d, a, b, c, x[5], 12, 0x4787c62a);
+            c = ff(c, d, a, b, x[6], 17, 0xa8304613);
+            b = ff(b, c, d, a, x[7], 22, 0xfd469501);
+            a = ff(a, b, c, d, x[8], 7, 0x698098d8);
+            d = ff(d, a, b, c, x[9], 12, 0x8b44f7af);
+            c = ff(c, d, a, b, x[10], 17, 0xffff5bb1);
+            b = ff(b, c, d, a, x[11], 22, 0x895cd7be);
+            a = ff(a, b, c, d, x[12], 7, 0x6b901122);
+            d = ff(d, a, b, c, x[13], 12, 0xfd987193);
+            c = ff(c, d, a, b, x[14], 17, 0xa679438e);
+            b = ff(b, c, d, a, x[15], 22, 0x49b40821);
+
+            a = gg(a, b, c, d, x[1], 5, 0xf61e2562);
+            d = gg(d, a, b, c, x[6], 9, 0xc040b340);
+            c = gg(c, d, a, b, x[11], 14, 0x265e5a51);
+            b = gg(b, c, d, a, x[0], 20, 0xe9b6c7aa);
+            a = gg(a, b, c, d, x[5], 5, 0xd62f105d);
+            d = gg(d, a, b, c, x[10], 9, 0x02441453);
+            c = gg(c, d, a, b, x[15], 14, 0xd8a1e681);
+            b = gg(b, c, d, a, x[4], 20, 0xe7d3fbc8);
+            a = gg(a, b, c, d, x[9], 5, 0x21e1cde6);
+            d = gg(d, a, b, c, x[14], 9, 0xc33707d6);
+            c = gg(c, d, a, b, x[3], 14, 0xf4d50d87);
+            b = gg(b, c, d, a, x[8], 20, 0x455a14ed);
+            a = gg(a, b, c, d, x[13], 5, 0xa9e3e905);
+            d = gg(d, a, b, c, x[2], 9, 0xfcefa3f8);
+            c = gg(c, d, a, b, x[7], 14, 0x676f02d9);
+            b = gg(b, c, d, a, x[12], 20, 0x8d2a4c8a);
+
+            a = hh(a, b, c, d, x[5], 4, 0xfffa3942);
+            d = hh(d, a, b, c, x[8], 11, 0x8771f681);
+            c = hh(c, d, a, b, x[11], 16, 0x6d9d6122);
+            b = hh(b, c, d, a, x[14], 23, 0xfde5380c);
+            a = hh(a, b, c, d, x[1], 4, 0xa4beea44);
+            d = hh(d, a, b, c, x[4], 11, 0x4bdecfa9);
+            c = hh(c, d, a, b, x[7], 16, 0xf6bb4b60);
+            b = hh(b, c, d, a, x[10], 23, 0xbebfbc70);
+            a = hh(a, b, c, d, x[13], 4, 0x289b7ec6);
+            d = hh(d, a, b, c, x[0], 11, 0xeaa127fa);
+            c = hh(c, d, a, b, x[3], 16, 0xd4ef3085);
+            b = hh(b, c, d, a, x[6], 23, 0x04881d05);
+            a = hh(a, b, c, d, x[9], 4, 0xd9d4d039);
+            d = hh(d, a, b, c, x[12], 11, 0xe6db99e5);
+            c = hh(c, d, a, b, x[15], 16, 0x1fa27cf8);
+            b = hh(b, c, d, a, x[2], 23, 0xc4ac5665);
+
+            a = ii(a, b, c, d, x[0], 6, 0xf4292244);
+            d = ii(d, a, b, c, x[7], 10, 0x432aff97);
+            c = ii(c, d, a, b, x[14], 15, 0xab9423a7);
+            b = ii(b, c, d, a, x[5], 21, 0xfc93a039);
+            a = ii(a, b, c, d, x[12], 6, 0x655b59c3);
+            d = ii(d, a, b, c, x[3], 10, 0x8f0ccc92);
+            c = ii(c, d, a, b, x[10], 15, 0xffeff47d);
+            b = ii(b, c, d, a, x[1], 21, 0x85845dd1);
+            a = ii(a, b, c, d, x[8], 6, 0x6fa87e4f);
+            d = ii(d, a, b, c, x[15], 10, 0xfe2ce6e0);
+            c = ii(c, d, a, b, x[6], 15, 0xa3014314);
+            b = ii(b, c, d, a, x[13], 21, 0x4e0811a1);
+            a = ii(a, b, c, d, x[4], 6, 0xf7537e82);
+            d = ii(d, a, b, c, x[11], 10, 0xbd3af235);
+            c = ii(c, d, a, b, x[2], 15, 0x2ad7d2bb);
+            b = ii(b, c, d, a, x[9], 21, 0xeb86d391);
+
+            state[0] += a;
+            state[1] += b;
+            state[2] += c;
+            state[3] += d;
+        }
+    }
+
+    private static class Sha256 extends ResumableDigest {
+
+        private static final int[] K = {
+                0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1,
+                0x923f82a4, 0xab1c5ed5, 0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3,
+                0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174, 0xe49b69c1, 0xefbe4786,
+                0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+                0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147,
+                0x06ca6351, 0x14292967, 0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13,
+                0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85, 0xa2bfe8a1, 0xa81a664b,
+                0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+                0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a,
+                0x5b9cca4f, 0x682e6ff3, 0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208,
+                0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2
+        };
+
+        private final int[] mWords = new int[64];
+
+        private Sha256() {
+            super("SHA-256", 8);
+        }
+
+        @Override
+        void init(int[] state) {
+            state[0] = 0x6a09e667;
+            state[1] = 0xbb67ae85;
+            state[2] = 0x3c6ef372;
+            state[3] = 0xa54ff53a;
+            state[4] = 0x510e527f;
+            state[5] = 0x9b05688c;
+            state[6] = 0x1f83d9ab;
+            state[7] = 0x5be0cd19;
+        }
+
+        @Override
+        boolean isBigEndian() {
+            return true;
+        }
+
+        @Override
+        void transform(int[] state, byte[] block, int offset) {
+            int[] w = mWords;
+            for (int i = 0; i < 16; i++) {
+                int j = offset + i * 4;
+                w[i] = (block[j] & 0xff) << 24 | (block[j + 1] & 0xff) << 16 |
+                        (block[j + 2] & 0xff) << 8 | (block[j + 3] & 0xff);
+            }
+            for (int i = 16; i < 64; i++) {
+                int s0 = Integer.rotateRight(w[i - 15], 7) ^
+                        Integer.rotateRight(w[i - 15], 18) ^ (w[i - 15] >>> 3);
+                int s1 = Integer.rotateRight(w[i - 2], 17) ^
+                        Integer.rotateRight(w[i - 2], 19) ^ (w[i - 2] >>> 10);
+                w[i] = w[i - 16] + s0 + w[i - 7] + s1;
+            }
+            int a = state[0];
+            int b = state[1];
+            int c = state[2];
+            int d = state[3];
+            int e = state[4];
+            int f = state[5];
+            int g = state[6];
+            int h = state[7];
+            for (int i = 0; i < 64; i++) {
+                int s1 = Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11) ^
+                        Integer.rotateRight(e, 25);
+                int ch = (e & f) ^ (~e & g);
+                int temp1 = h + s1 + ch + K[i] + w[i];
+                int s0 = Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13) ^
+                        Integer.rotateRight(a, 22);
+                int maj = (a & b) ^ (a & c) ^ (b & c);
+                int temp2 = s0 + maj;
+                h = g;
+                g = f;
+                f = e;
+                e = d + temp1;
+                d = c;
+                c = b;
+                b = a;
+                a = temp1 + temp2;
+            }
+            state[0] += a;
+            state[1] += b;
+            state[2] += c;
+            state[3] += d;
+            state[4] += e;
+            state[5] += f;
+            state[6] += g;
+            state[7] += h;
+        }
+    }
+}
@@ -28,6 +28,8 @@ import android.os.Environment;
 import android.os.PowerManager;
 import android.os.SystemProperties;
 import android.os.storage.StorageManager;
+import android.system.ErrnoException;
+import android.system.Os;
 import android.util.Log;
 
 import com.google.gson.Gson;
@@ -44,14 +46,8 @@ import org.pixelexperience.ota.model.UpdateStatus;
 
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.math.BigInteger;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.zip.ZipEntry;
@@ -82,6 +78,14 @@ public class Utils {
         return new File(context.getCacheDir(), "updates.json");
     }
 
+    public static File getMirrorScorecard(Context context) {
+        return new File(context.getFilesDir(), "mirror_scorecard");
+    }
+
+    public static File getDataBudget(Context context) {
+        return new File(context.getFilesDir(), "data_budget");
+    }
+
     // This should really return an UpdateBaseInfo object, but currently this only
     // used to initialize UpdateInfo objects
     private static UpdateInfo parseJsonUpdate(JSONObject object, Context context) throws JSONException {
@@ -207,6 +211,16 @@ public class Utils {
         return cm.isActiveNetworkMetered();
     }
 
+    /**
+     * Whether a download may go on over metered networks. It may if the user turned
+     * the warning off, or is on a metered network already, after being warned.
+     */
+    public static boolean isMeteredNetworkAllowed(Context context) {
+        SharedPreferences preferences = androidx.preference.PreferenceManager.getDefaultSharedPreferences(context);
+        return !preferences.getBoolean(Constants.PREF_METERED_NETWORK_WARNING, true) ||
+                isNetworkMetered(context);
+    }
+
     public static boolean checkForNewUpdates(File oldJson, File newJson, boolean fromBoot, Context context)
             throws IOException, JSONException {
         if (!oldJson.exists() || fromBoot) {
@@ -283,6 +297,77 @@ public class Utils {
         return SystemProperties.getBoolean(Constants.PROP_AB_DEVICE, false);
     }
 
+    public static boolean useNonBlockingDownloads() {
+        return SystemProperties.getBoolean(Constants.PROP_NIO_DOWNLOAD, false);
+    }
+
+    /**
+     * @return how long a paused download keeps its connections, 0 to close them
+     * right away
+     */
+    public static long getSoftPauseGraceMs() {
+        return SystemProperties.getLong(Constants.PROP_SOFT_PAUSE_MS, 30000);
+    }
+
+    public static boolean useNetworkBonding() {
+        return SystemProperties.getBoolean(Constants.PROP_NETWORK_BONDING, false);
+    }
+
+    /**
+     * @return how many bytes a bonded download may take from a metered network, 0 for
+     * no limit
+     */
+    public static long getMeteredBondingCap() {
+        return SystemProperties.getLong(Constants.PROP_METERED_BONDING_CAP_MB, 256) * 1024 * 1024;
+    }
+
+    /**
+     * @return how many bytes downloads may take from metered networks per billing
+     * window, 0 for no limit
+     */
+    public static long getMeteredDataBudget() {
+        return SystemProperties.getLong(Constants.PROP_METERED_BUDGET_MB, 0) * 1024 * 1024;
+    }
+
+    /**
+     * @return the day of the month billing windows of metered networks start on
+     */
+    public static int getBillingDay() {
+        return SystemProperties.getInt(Constants.PROP_BILLING_DAY, 1);
+    }
+
+    /**
+     * @return the bytes per second downloads may take while the app is open, 0 for
+     * no limit
+     */
+    public static long getForegroundRateLimit() {
+        return SystemProperties.getLong(Constants.PROP_RATE_LIMIT_FOREGROUND_KBPS, 0) * 1024;
+    }
+
+    /**
+     * @return the bytes per second downloads may take in the background, 0 for no
+     * limit
+     */
+    public static long getBackgroundRateLimit() {
+        return SystemProperties.getLong(Constants.PROP_RATE_LIMIT_BACKGROUND_KBPS, 0) * 1024;
+    }
+
+    /**
+     * @return the bytes per second downloads may take while the device is warm or
+     * low on battery, 0 for no limit
+     */
+    public static long getThrottledRateLimit() {
+        return SystemProperties.getLong(Constants.PROP_THROTTLED_RATE_LIMIT_KBPS, 1024) * 1024;
+    }
+
+    /**
+     * @return whether A/B updates should be applied straight from the server
+     * instead of being downloaded first
+     */
+    public static boolean useStreamingInstall() {
+        return isABDevice() && SystemProperties.getBoolean(Constants.PROP_STREAMING_INSTALL, false);
+    }
+
     public static boolean isEncrypted(Context context, File file) {
         StorageManager sm = (StorageManager) context.getSystemService(Context.STORAGE_SERVICE);
         if (sm == null) {
@@ -291,50 +376,42 @@ public class Utils {
         return sm.isEncrypted(file);
     }
 
-    public static long getUpdateCheckInterval() {
-        return AlarmManager.INTERVAL_DAY;
-    }
-
-    public static String calculateMD5(File updateFile) {
-        MessageDigest digest;
-        try {
-            digest = MessageDigest.getInstance("MD5");
-        } catch (NoSuchAlgorithmException e) {
-            Log.e(TAG, "Exception while getting digest", e);
-            return null;
+    /**
+     * Make room for the given file to grow to the given size, clearing cached
+     * data of apps if needed.
+     *
+     * @return false if there isn't enough space
+     */
+    public static boolean ensureSpace(Context context, File file, long size) {
+        StorageManager sm = (StorageManager) context.getSystemService(Context.STORAGE_SERVICE);
+        if (sm == null) {
+            return true;
         }
-
-        InputStream is;
-        try {
-            is = new FileInputStream(updateFile);
-        } catch (FileNotFoundException e) {
-            Log.e(TAG, "Exception while getting FileInputStream", e);
-            return null;
+        long needed = size;
+        if (file.exists()) {
+            try {
+                // st_blocks is in 512 bytes units, whatever the block size
+                needed -= Os.stat(file.getAbsolutePath()).st_blocks * 512;
+            } catch (ErrnoException e) {
+                Log.e(TAG, "Could not stat " + file, e);
+            }
+        }
+        if (needed <= 0) {
+            return true;
         }
-
-        byte[] buffer = new byte[8192];
-        int read;
         try {
-            while ((read = is.read(buffer)) > 0) {
-                digest.update(buffer, 0, read);
-            }
-            byte[] md5sum = digest.digest();
-            BigInteger bigInt = new BigInteger(1, md5sum);
-            String output = bigInt.toString(16);
-            // Fill to 32 chars
-            output = String.format("%32s", output).replace(' ', '0');
-            return output;
+            sm.allocateBytes(sm.getUuidForPath(file.getParentFile()), needed);
+            return true;
         } catch (IOException e) {
-            throw new RuntimeException("Unable to process file for MD5", e);
-        } finally {
-            try {
-                is.close();
-            } catch (IOException e) {
-                Log.e(TAG, "Exception on closing MD5 input stream", e);
-            }
+            Log.e(TAG, "Not enough space for " + file.getName(), e);
+            return false;
         }
     }
 
+    public static long getUpdateCheckInterval() {
+        return AlarmManager.INTERVAL_DAY;
+    }
+
     @SuppressLint("DefaultLocale")
     public static String readableFileSize(long size) {
         String[] units = new String[]{"B", "kB", "MB", "GB", "TB", "PB"};
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2023 The PixelExperience Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixelexperience.ota.misc;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.StructStat;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Remembers packages that passed verification, so that they don't need to be
+ * hashed again as long as the file on disk is unchanged. Also keeps the last
+ * checkpoint of a verification in progress, so that it can continue from there
+ * if the process dies.
+ */
+public class VerificationCache {
+
+    private static final String TAG = "VerificationCache";
+
+    private static final String SUFFIX = ".verified";
+    private static final String CHECKPOINT_SUFFIX = ".checkpoint";
+
+    private static final String KEY_PATH = "path";
+    private static final String KEY_SIZE = "size";
+    private static final String KEY_MTIME = "mtime";
+    private static final String KEY_INODE = "inode";
+    private static final String KEY_HASH = "hash";
+
+    private VerificationCache() {
+    }
+
+    private static AtomicFile getCacheFile(File file) {
+        return new AtomicFile(new File(file.getParentFile(), file.getName() + SUFFIX));
+    }
+
+    private static AtomicFile getCheckpointFile(File file) {
+        return new AtomicFile(new File(file.getParentFile(), file.getName() + CHECKPOINT_SUFFIX));
+    }
+
+    private static JSONObject getKey(File file, String hash) throws ErrnoException, JSONException {
+        StructStat stat = Os.stat(file.getAbsolutePath());
+        JSONObject key = new JSONObject();
+        key.put(KEY_PATH, file.getAbsolutePath());
+        key.put(KEY_SIZE, stat.st_size);
+        key.put(KEY_MTIME, stat.st_mtime);
+        key.put(KEY_INODE, stat.st_ino);
+        key.put(KEY_HASH, hash);
+        return key;
+    }
+
+    public static boolean isVerified(File file, String hash) {
+        AtomicFile cacheFile = getCacheFile(file);
+        if (!cacheFile.getBaseFile().exists()) {
+            return false;
+        }
+        try {
+            JSONObject cached = new JSONObject(
+                    new String(cacheFile.readFully(), StandardCharsets.UTF_8));
+            return matches(cached, file, hash);
+        } catch (IOException | ErrnoException | JSONException e) {
+            Log.e(TAG, "Could not read verification cache", e);
+            return false;
+        }
+    }
+
+    public static void setVerified(File file, String hash) {
+        AtomicFile cacheFile = getCacheFile(file);
+        FileOutputStream fos = null;
+        try {
+            byte[] data = getKey(file, hash).toString().getBytes(StandardCharsets.UTF_8);
+            fos = cacheFile.startWrite();
+            fos.write(data);
+            cacheFile.finishWrite(fos);
+        } catch (IOException | ErrnoException | JSONException e) {
+            Log.e(TAG, "Could not write verification cache", e);
+            if (fos != null) {
+                cacheFile.failWrite(fos);
+            }
+        }
+    }
+
+    private static boolean matches(JSONObject cached, File file, String hash)
+            throws ErrnoException, JSONException {
+        JSONObject key = getKey(file, hash);
+        return key.getString(KEY_PATH).equals(cached.optString(KEY_PATH)) &&
+                key.getLong(KEY_SIZE) == cached.optLong(KEY_SIZE, -1) &&
+                key.getLong(KEY_MTIME) == cached.optLong(KEY_MTIME, -1) &&
+                key.getLong(KEY_INODE) == cached.optLong(KEY_INODE, -1) &&
+                key.getString(KEY_HASH).equals(cached.optString(KEY_HASH));
+    }
+
+    public static void saveCheckpoint(File file, String hash, PackageVerifier verifier) {
+        AtomicFile checkpointFile = getCheckpointFile(file);
+        FileOutputStream fos = null;
+        try {
+            String key = getKey(file, hash).toString();
+            fos = checkpointFile.startWrite();
+            DataOutputStream out = new DataOutputStream(fos);
+            out.writeUTF(key);
+            verifier.writeCheckpoint(out);
+            out.flush();
+            checkpointFile.finishWrite(fos);
+        } catch (IOException | ErrnoException | JSONException e) {
+            Log.e(TAG, "Could not write checkpoint", e);
+            if (fos != null) {
+                checkpointFile.failWrite(fos);
+            }
+        }
+    }
+
+    /**
+     * @return a verifier that continues from the last checkpoint, or null if there
+     * is none or the file changed since it was written
+     */
+    public static PackageVerifier loadCheckpoint(File file, String hash) {
+        AtomicFile checkpointFile = getCheckpointFile(file);
+        if (!checkpointFile.getBaseFile().exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(checkpointFile.readFully()))) {
+            if (!matches(new JSONObject(in.readUTF()), file, hash)) {
+                Log.d(TAG, "Package changed, discarding checkpoint");
+                checkpointFile.delete();
+                return null;
+            }
+            PackageVerifier verifier = PackageVerifier.readCheckpoint(in, hash);
+            if (verifier.getLength() > file.length()) {
+                return null;
+            }
+            return verifier;
+        } catch (IOException | ErrnoException | JSONException e) {
+            Log.e(TAG, "Could not read checkpoint", e);
+            checkpointFile.delete();
+            return null;
+        }
+    }
+
+    public static void clearCheckpoint(File file) {
+        getCheckpointFile(file).delete();
+    }
+
+    public static void clear(File file) {
+        getCacheFile(file).delete();
+        clearCheckpoint(file);
+    }
+}
@@ -23,6 +23,7 @@ public enum UpdateStatus {
     DOWNLOADED,
     PAUSED,
     DOWNLOAD_ERROR,
+    NOT_ENOUGH_SPACE,
     DELETED,
     VERIFYING,
     VERIFIED,
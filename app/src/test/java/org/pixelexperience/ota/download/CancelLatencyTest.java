@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2023 The PixelExperience Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixelexperience.ota.download;
+
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cancels downloads blocked reading from a server that stopped sending, which
+ * has to close the connections rather than wait for data that never comes.
+ */
+public class CancelLatencyTest {
+
+    private static final long MAX_LATENCY_MS = 100;
+
+    private TestServer mServer;
+    private File mDestination;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new TestServer(TestServer.createContent(1024 * 1024));
+        mServer.setStalled(true);
+        mDestination = File.createTempFile("update", ".zip");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mServer.close();
+        mDestination.delete();
+    }
+
+    @Test
+    public void cancelsBlockingReads() throws Exception {
+        assertCancelLatency(false);
+    }
+
+    @Test
+    public void cancelsNonBlockingReads() throws Exception {
+        assertCancelLatency(true);
+    }
+
+    private void assertCancelLatency(boolean useNonBlockingIo) throws Exception {
+        CountDownLatch responded = new CountDownLatch(1);
+        CountDownLatch cancelled = new CountDownLatch(1);
+        DownloadClient downloadClient = new DownloadClient.Builder()
+                .setUrl(mServer.getUrl())
+                .setDestination(mDestination)
+                .setDownloadCallback(new DownloadClient.DownloadCallback() {
+                    @Override
+                    public void onResponse(int statusCode, String url,
+                                           DownloadClient.Headers headers) {
+                        responded.countDown();
+                    }
+
+                    @Override
+                    public void onSuccess(File destination) {
+                    }
+
+                    @Override
+                    public void onFailure(boolean isCancelled) {
+                        if (isCancelled) {
+                            cancelled.countDown();
+                        }
+                    }
+                })
+                .setClock(TestClock.REAL_TIME)
+                .setUseNonBlockingIo(useNonBlockingIo)
+                .build();
+        downloadClient.start();
+        assertTrue("No response", responded.await(10, TimeUnit.SECONDS));
+        // Let the connection block on the body
+        Thread.sleep(200);
+        long start = System.nanoTime();
+        downloadClient.cancel();
+        long returned = (System.nanoTime() - start) / 1000000;
+        assertTrue("Not cancelled", cancelled.await(10, TimeUnit.SECONDS));
+        long latency = (System.nanoTime() - start) / 1000000;
+        assertTrue("cancel() took " + returned + " ms", returned < MAX_LATENCY_MS);
+        assertTrue("Cancelled after " + latency + " ms", latency < MAX_LATENCY_MS);
+    }
+}
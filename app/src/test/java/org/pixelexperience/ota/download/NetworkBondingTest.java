@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2023 The PixelExperience Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixelexperience.ota.download;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bonds stand-in networks whose sockets are bound to different loopback addresses,
+ * so that the server can tell them apart and serve each at its own rate. Uses the
+ * non-blocking transport, which binds its sockets itself. Skipped where only
+ * 127.0.0.1 is configured, such as on macOS.
+ */
+public class NetworkBondingTest {
+
+    // Large enough for ranges to be taken over, see Segment.MIN_STEAL_SIZE
+    private static final int CONTENT_SIZE = 64 * 1024 * 1024;
+    private static final String WIFI_ADDRESS = "127.0.0.1";
+    private static final String CELLULAR_ADDRESS = "127.0.0.2";
+
+    private final byte[] mContent = TestServer.createContent(CONTENT_SIZE);
+    private final FakeNetwork mWifi = new FakeNetwork(WIFI_ADDRESS, false);
+    private final FakeNetwork mCellular = new FakeNetwork(CELLULAR_ADDRESS, true);
+    private final FakeNetworkSource mNetworkSource = new FakeNetworkSource();
+    private TestServer mServer;
+    private File mDestination;
+
+    @BeforeClass
+    public static void checkAddresses() {
+        assumeTrue("Can't bind to " + CELLULAR_ADDRESS, canBind(CELLULAR_ADDRESS));
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new TestServer(mContent);
+        mServer.setRate(WIFI_ADDRESS, 12 * 1024 * 1024);
+        mServer.setRate(CELLULAR_ADDRESS, 4 * 1024 * 1024);
+        mDestination = File.createTempFile("update", ".zip");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mServer.close();
+        mDestination.delete();
+    }
+
+    @Test
+    public void splitsByThroughput() throws Exception {
+        mNetworkSource.setNetworks(mWifi, mCellular);
+        download(0);
+        long wifi = mServer.getServed(WIFI_ADDRESS);
+        long cellular = mServer.getServed(CELLULAR_ADDRESS);
+        double share = (double) wifi / (wifi + cellular);
+        assertTrue("Wi-Fi took " + wifi + " bytes, cellular " + cellular,
+                share > 0.6 && share < 0.9);
+        assertEquals(0, mNetworkSource.mListeners.size());
+    }
+
+    @Test
+    public void capsMeteredNetwork() throws Exception {
+        long cap = 8 * 1024 * 1024;
+        mNetworkSource.setNetworks(mWifi, mCellular);
+        download(cap);
+        long cellular = mServer.getServed(CELLULAR_ADDRESS);
+        // Reads in flight when the cap is reached still arrive
+        assertTrue("Cellular took " + cellular + " bytes", cellular > 0 &&
+                cellular < cap + 2 * 1024 * 1024);
+    }
+
+    @Test
+    public void continuesWhenNetworkIsLost() throws Exception {
+        mNetworkSource.setNetworks(mWifi, mCellular);
+        new Thread(() -> {
+            try {
+                Thread.sleep(1000);
+            } catch (InterruptedException e) {
+                return;
+            }
+            mNetworkSource.setNetworks(mWifi);
+        }).start();
+        download(0);
+        assertTrue(mServer.getServed(CELLULAR_ADDRESS) > 0);
+    }
+
+    private static boolean canBind(String address) {
+        try (Socket socket = new Socket()) {
+            socket.bind(new InetSocketAddress(address, 0));
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void download(long meteredNetworkCap) throws Exception {
+        CountDownLatch done = new CountDownLatch(1);
+        boolean[] success = new boolean[1];
+        DownloadClient downloadClient = new DownloadClient.Builder()
+                .setUrl(mServer.getUrl())
+                .setDestination(mDestination)
+                .setDownloadCallback(new DownloadClient.DownloadCallback() {
+                    @Override
+                    public void onResponse(int statusCode, String url,
+                                           DownloadClient.Headers headers) {
+                    }
+
+                    @Override
+                    public void onSuccess(File destination) {
+                        success[0] = true;
+                        done.countDown();
+                    }
+
+                    @Override
+                    public void onFailure(boolean cancelled) {
+                        done.countDown();
+                    }
+                })
+                .setSegments(2)
+                .setClock(TestClock.REAL_TIME)
+                .setUseNonBlockingIo(true)
+                .setNetworkSource(mNetworkSource)
+                .setUseNetworkBonding(true)
+                .setMeteredNetworkCap(meteredNetworkCap)
+                .build();
+        downloadClient.start();
+        assertTrue("Timed out", done.await(60, TimeUnit.SECONDS));
+        assertTrue("Download failed", success[0]);
+        assertArrayEquals(mContent, Files.readAllBytes(mDestination.toPath()));
+    }
+
+    private static class FakeNetwork implements DownloadNetwork {
+        private final String mAddress;
+        private final boolean mMetered;
+
+        private FakeNetwork(String address, boolean metered) {
+            mAddress = address;
+            mMetered = metered;
+        }
+
+        @Override
+        public boolean isMetered() {
+            return mMetered;
+        }
+
+        @Override
+        public URLConnection openConnection(URL url) throws IOException {
+            return url.openConnection();
+        }
+
+        @Override
+        public InetAddress[] getAllByName(String host) throws UnknownHostException {
+            return InetAddress.getAllByName(host);
+        }
+
+        @Override
+        public void bindSocket(Socket socket) throws IOException {
+            socket.bind(new InetSocketAddress(mAddress, 0));
+        }
+    }
+
+    private static class FakeNetworkSource implements NetworkSource {
+        private final List<DownloadNetwork> mNetworks = new CopyOnWriteArrayList<>();
+        private final List<Listener> mListeners = new CopyOnWriteArrayList<>();
+
+        private void setNetworks(DownloadNetwork... networks) {
+            mNetworks.clear();
+            mNetworks.addAll(Arrays.asList(networks));
+            for (Listener listener : mListeners) {
+                listener.onNetworksChanged();
+            }
+        }
+
+        @Override
+        public void start(Listener listener) {
+            mListeners.add(listener);
+        }
+
+        @Override
+        public void stop(Listener listener) {
+            mListeners.remove(listener);
+        }
+
+        @Override
+        public DownloadNetwork getDefaultNetwork() {
+            return mNetworks.isEmpty() ? null : mNetworks.get(0);
+        }
+
+        @Override
+        public List<DownloadNetwork> getNetworks() {
+            return new ArrayList<>(mNetworks);
+        }
+
+        @Override
+        public boolean isLost(DownloadNetwork network) {
+            return !mNetworks.contains(network);
+        }
+    }
+}
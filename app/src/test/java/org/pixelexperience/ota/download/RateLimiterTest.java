@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2023 The PixelExperience Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixelexperience.ota.download;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class RateLimiterTest {
+
+    private static final int CONTENT_SIZE = 4 * 1024 * 1024;
+    private static final long RATE = 1024 * 1024;
+    // What the bucket holds after being idle at RATE, see RateLimiter.BURST_MS
+    private static final long BURST = RATE / 10;
+    // Transfers through the transport are timed with the wall clock. They can't get
+    // faster than the limit, but a loaded machine can make them a lot slower.
+    private static final double MAX_OVERSHOOT = 0.1;
+    private static final double MIN_SHARE = 0.5;
+
+    private TestServer mServer;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new TestServer(TestServer.createContent(CONTENT_SIZE));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mServer.close();
+    }
+
+    @Test
+    public void allowsBurstAfterIdle() {
+        TestClock clock = new TestClock();
+        RateLimiter rateLimiter = new RateLimiter(clock);
+        rateLimiter.setRate(RATE);
+        clock.advance(10000);
+        assertEquals(BURST, rateLimiter.getAllowance(Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void makesDebtWaitedOut() {
+        TestClock clock = new TestClock();
+        RateLimiter rateLimiter = new RateLimiter(clock);
+        rateLimiter.setRate(RATE);
+        clock.advance(1000);
+        assertEquals(BURST, rateLimiter.getAllowance(Integer.MAX_VALUE));
+        // A read can take more than it was allowed
+        rateLimiter.consume((int) (BURST + RATE));
+        assertEquals(0, rateLimiter.getAllowance(64 * 1024));
+        // Until the debt and the smallest read allowed are paid back
+        long delay = rateLimiter.getDelayMillis(64 * 1024);
+        assertEquals((long) Math.ceil((RATE + 4 * 1024) * 1000.0 / RATE), delay);
+        clock.advance(delay - 1);
+        assertEquals(0, rateLimiter.getAllowance(64 * 1024));
+        clock.advance(1);
+        assertTrue(rateLimiter.getAllowance(64 * 1024) > 0);
+    }
+
+    @Test
+    public void keepsRateOfReader() {
+        TestClock clock = new TestClock();
+        RateLimiter rateLimiter = new RateLimiter(clock);
+        rateLimiter.setRate(RATE);
+        long consumed = readFor(clock, rateLimiter, 10000);
+        assertTrue("Read " + consumed + " bytes", consumed >= RATE * 10 - 64 * 1024 &&
+                consumed <= RATE * 10 + BURST);
+    }
+
+    @Test
+    public void appliesRateChangesRightAway() {
+        TestClock clock = new TestClock();
+        RateLimiter rateLimiter = new RateLimiter(clock);
+        rateLimiter.setRate(RATE);
+        readFor(clock, rateLimiter, 1000);
+        rateLimiter.setRate(RATE * 4);
+        long consumed = readFor(clock, rateLimiter, 1000);
+        assertTrue("Read " + consumed + " bytes", consumed >= RATE * 4 - 64 * 1024 &&
+                consumed <= RATE * 4 + BURST * 4);
+        rateLimiter.setRate(0);
+        assertEquals(Integer.MAX_VALUE, rateLimiter.getAllowance(Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void keepsRateOfSingleConnection() throws Exception {
+        RateLimiter rateLimiter = new RateLimiter(TestClock.REAL_TIME);
+        rateLimiter.setRate(RATE);
+        assertRate(RATE, download(rateLimiter, 1, null));
+    }
+
+    @Test
+    public void keepsCombinedRateOfConnections() throws Exception {
+        RateLimiter rateLimiter = new RateLimiter(TestClock.REAL_TIME);
+        rateLimiter.setRate(RATE);
+        assertRate(RATE, download(rateLimiter, 4, null));
+    }
+
+    @Test
+    public void changesRateWithoutReconnecting() throws Exception {
+        RateLimiter rateLimiter = new RateLimiter(TestClock.REAL_TIME);
+        rateLimiter.setRate(RATE / 4);
+        // Would take 16s at the initial rate
+        long elapsed = download(rateLimiter, 1, () -> rateLimiter.setRate(0));
+        assertTrue("Took " + elapsed + " ms", elapsed < 10000);
+        assertEquals(1, mServer.getConnectionCount());
+    }
+
+    /**
+     * Read as much as allowed in 64 KiB reads, waiting as told in between, until
+     * the given time went by on the clock.
+     *
+     * @return how many bytes were read
+     */
+    private static long readFor(TestClock clock, RateLimiter rateLimiter, long millis) {
+        long end = clock.elapsedRealtime() + millis;
+        long consumed = 0;
+        while (clock.elapsedRealtime() < end) {
+            int allowance = rateLimiter.getAllowance(64 * 1024);
+            if (allowance == 0) {
+                clock.advance(rateLimiter.getDelayMillis(64 * 1024));
+                continue;
+            }
+            rateLimiter.consume(allowance);
+            consumed += allowance;
+        }
+        return consumed;
+    }
+
+    private static void assertRate(long limit, long elapsedMillis) {
+        long measured = CONTENT_SIZE * 1000L / elapsedMillis;
+        assertTrue("Measured " + measured + " B/s, limit " + limit + " B/s",
+                measured <= limit * (1 + MAX_OVERSHOOT) && measured >= limit * MIN_SHARE);
+    }
+
+    /**
+     * Fetch the content over the given number of connections, running the given
+     * action a second in.
+     *
+     * @return how long that took in milliseconds
+     */
+    private long download(RateLimiter rateLimiter, int connections, Runnable action)
+            throws Exception {
+        BufferPool bufferPool = new BufferPool(16, 256 * 1024, TestClock.REAL_TIME);
+        UrlConnectionTransport transport = new UrlConnectionTransport(bufferPool, rateLimiter,
+                TestClock.REAL_TIME);
+        CountDownLatch done = new CountDownLatch(connections);
+        AtomicLong received = new AtomicLong();
+        AtomicReference<IOException> error = new AtomicReference<>();
+        Transport.Listener listener = new Transport.Listener() {
+            @Override
+            public boolean onResponse(Transport.Exchange exchange, Response response) {
+                return response.getCode() == 206;
+            }
+
+            @Override
+            public void onData(Transport.Exchange exchange, ByteBuffer buffer) {
+                received.addAndGet(buffer.remaining());
+                bufferPool.release(buffer);
+            }
+
+            @Override
+            public void onComplete(Transport.Exchange exchange) {
+                done.countDown();
+            }
+
+            @Override
+            public void onFailure(Transport.Exchange exchange, IOException e) {
+                error.set(e);
+                done.countDown();
+            }
+        };
+        long start = System.nanoTime();
+        int segmentSize = CONTENT_SIZE / connections;
+        for (int i = 0; i < connections; i++) {
+            long end = i == connections - 1 ? CONTENT_SIZE - 1 : (i + 1) * segmentSize - 1;
+            transport.execute(new Request(new URL(mServer.getUrl()))
+                    .setHeader("Range", "bytes=" + i * segmentSize + "-" + end), listener);
+        }
+        if (action != null && !done.await(1, TimeUnit.SECONDS)) {
+            action.run();
+        }
+        try {
+            assertTrue("Timed out", done.await(60, TimeUnit.SECONDS));
+        } finally {
+            transport.shutdown();
+        }
+        long elapsed = (System.nanoTime() - start) / 1000000;
+        assertNull(error.get());
+        assertEquals(CONTENT_SIZE, received.get());
+        return elapsed;
+    }
+}
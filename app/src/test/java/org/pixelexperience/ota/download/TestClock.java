@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2023 The PixelExperience Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixelexperience.ota.download;
+
+/**
+ * Clocks for JVM tests, where the SystemClock of android.jar always returns 0.
+ * An instance only moves when told to.
+ */
+final class TestClock implements Clock {
+
+    static final Clock REAL_TIME = () -> System.nanoTime() / 1000000;
+
+    private long mNow = 0;
+
+    synchronized void advance(long millis) {
+        mNow += millis;
+    }
+
+    @Override
+    public synchronized long elapsedRealtime() {
+        return mNow;
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2023 The PixelExperience Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixelexperience.ota.download;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Minimal HTTP server on the loopback interface serving a single file, with range
+ * requests and a rate per client address. Connections are closed after each
+ * response.
+ */
+final class TestServer implements Closeable {
+
+    private static final int CHUNK_SIZE = 16 * 1024;
+
+    private final byte[] mContent;
+    private final ServerSocket mServerSocket;
+    private final Set<Socket> mSockets = ConcurrentHashMap.newKeySet();
+    private final Map<String, Long> mRates = new ConcurrentHashMap<>();
+    // When the next chunk to each client address may be sent, in nanoseconds
+    private final Map<String, Long> mNextSend = new HashMap<>();
+    private final Map<String, Long> mServed = new ConcurrentHashMap<>();
+    private final AtomicInteger mConnections = new AtomicInteger();
+    private volatile boolean mStalled = false;
+
+    TestServer(byte[] content) throws IOException {
+        mContent = content;
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread thread = new Thread(this::accept, "TestServer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    static byte[] createContent(int size) {
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        return content;
+    }
+
+    String getUrl() {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + "/update.zip";
+    }
+
+    /**
+     * Send to the given client address at no more than this many bytes per second,
+     * over all its connections together, like a link of that speed.
+     */
+    void setRate(String address, long bytesPerSecond) {
+        mRates.put(address, bytesPerSecond);
+    }
+
+    /**
+     * Answer the requests that follow without ever sending the body, like a server
+     * that stopped responding mid-transfer.
+     */
+    void setStalled(boolean stalled) {
+        mStalled = stalled;
+    }
+
+    /**
+     * @return the bytes of the body sent to the given client address
+     */
+    long getServed(String address) {
+        Long served = mServed.get(address);
+        return served != null ? served : 0;
+    }
+
+    int getConnectionCount() {
+        return mConnections.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mServerSocket.close();
+        for (Socket socket : mSockets) {
+            socket.close();
+        }
+    }
+
+    private void accept() {
+        while (!mServerSocket.isClosed()) {
+            Socket socket;
+            try {
+                socket = mServerSocket.accept();
+            } catch (IOException e) {
+                return;
+            }
+            mConnections.incrementAndGet();
+            mSockets.add(socket);
+            Thread thread = new Thread(() -> serve(socket), "TestServer connection");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * @return when the given number of bytes can be sent to the address, in
+     * nanoseconds
+     */
+    private synchronized long reserve(String address, int count) {
+        long now = System.nanoTime();
+        Long rate = mRates.get(address);
+        if (rate == null) {
+            return now;
+        }
+        Long next = mNextSend.get(address);
+        long sendAt = next != null ? Math.max(next, now) : now;
+        mNextSend.put(address, sendAt + count * 1000000000L / rate);
+        return sendAt;
+    }
+
+    private void serve(Socket socket) {
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(
+                    socket.getInputStream(), StandardCharsets.ISO_8859_1));
+            String requestLine = in.readLine();
+            if (requestLine == null) {
+                return;
+            }
+            String range = null;
+            String line;
+            while ((line = in.readLine()) != null && !line.isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Range")) {
+                    range = line.substring(colon + 1).trim();
+                }
+            }
+            long start = 0;
+            long end = mContent.length - 1;
+            if (range != null) {
+                String[] bounds = range.substring("bytes=".length()).split("-", -1);
+                start = Long.parseLong(bounds[0]);
+                if (!bounds[1].isEmpty()) {
+                    end = Math.min(end, Long.parseLong(bounds[1]));
+                }
+            }
+            StringBuilder headers = new StringBuilder();
+            if (range != null) {
+                headers.append("HTTP/1.1 206 Partial Content\r\n")
+                        .append("Content-Range: bytes ").append(start).append('-')
+                        .append(end).append('/').append(mContent.length).append("\r\n");
+            } else {
+                headers.append("HTTP/1.1 200 OK\r\n");
+            }
+            headers.append("Content-Length: ").append(end - start + 1).append("\r\n")
+                    .append("Accept-Ranges: bytes\r\n")
+                    .append("ETag: \"").append(mContent.length).append("\"\r\n")
+                    .append("Connection: close\r\n")
+                    .append("\r\n");
+            OutputStream out = socket.getOutputStream();
+            out.write(headers.toString().getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+            if (requestLine.startsWith("HEAD ")) {
+                return;
+            }
+            if (mStalled) {
+                // Until the client gives up
+                while (in.read() >= 0) {
+                }
+                return;
+            }
+            String address = socket.getInetAddress().getHostAddress();
+            for (long position = start; position <= end; ) {
+                int count = (int) Math.min(CHUNK_SIZE, end - position + 1);
+                long wait = reserve(address, count) - System.nanoTime();
+                if (wait > 0) {
+                    Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                }
+                out.write(mContent, (int) position, count);
+                position += count;
+                mServed.merge(address, (long) count, Long::sum);
+            }
+            out.flush();
+        } catch (IOException | InterruptedException e) {
+            // The client went away
+        } finally {
+            mSockets.remove(socket);
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+    }
+}